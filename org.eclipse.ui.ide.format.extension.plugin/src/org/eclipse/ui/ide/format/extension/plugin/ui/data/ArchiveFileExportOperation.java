@@ -10,21 +10,36 @@
  *******************************************************************************/
 package org.eclipse.ui.ide.format.extension.plugin.ui.data;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import org.eclipse.core.filesystem.EFS;
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.jface.operation.ModalContext;
 import org.eclipse.osgi.util.NLS;
@@ -33,10 +48,76 @@ import org.eclipse.ui.ide.format.extension.plugin.ui.data.ZipFileExporter;
 /**
  *	Operation for exporting a resource and its children to a new .zip or
  *  .tar.gz file.
+ *  <p>
+ *  When parallel compression is on, files up to {@link #READ_AHEAD_MAX_SIZE}
+ *  are read ahead on the reader threads of the {@link WorkerPool} while the
+ *  operation walks the resources; the operation hands them to the exporter
+ *  in the order it walked them, so the archive does not depend on which
+ *  read finishes first.  Reading from slow disks then overlaps with
+ *  compressing and writing the archive.  Uncompressed .tar files are
+ *  written without reading ahead.
+ *  </p>
+ *  <p>
+ *  The resources are walked once, without counting them first.  The
+ *  progress is estimated from the number of files found by the previous
+ *  export of the same resources, if any, and the estimate is raised when
+ *  more files turn up.
+ *  </p>
+ *  <p>
+ *  The operation can write a manifest of the export, see
+ *  {@link #setManifest(String)}.  Given the manifest of an earlier export,
+ *  see {@link #setBaseManifest(String)}, it exports only the files that are
+ *  new or changed since, and lists the entries that are gone in the
+ *  {@link #DELETIONS_ENTRY} entry, so the archive is a layer on top of the
+ *  earlier one.
+ *  </p>
  *  
  *  @since 3.1
  */
 public class ArchiveFileExportOperation implements IRunnableWithProgress {
+    /**
+     * The name of the entry listing, one per line in UTF-8, the entries of
+     * the base manifest that are gone, escaped as in the manifest.  A
+     * folder is only listed when it is gone, not when it was empty and now
+     * holds files.  The entry is only written when the list is not empty.
+     *
+     * @see #setBaseManifest(String)
+     * @since 3.4
+     */
+    public static final String DELETIONS_ENTRY = ".export-deletions"; //$NON-NLS-1$
+
+    /**
+     * The largest file read ahead of the exporter; larger files are read by
+     * the exporter itself.
+     */
+    private static final long READ_AHEAD_MAX_SIZE = 1024 * 1024;
+
+    /**
+     * The most files read ahead of the exporter at once.
+     */
+    private static final int MAX_READ_AHEAD = 8 * WorkerPool.READERS;
+
+    /**
+     * The number of files expected when the resources were not exported
+     * before.
+     */
+    private static final int DEFAULT_FILE_ESTIMATE = 1000;
+
+    /**
+     * The number of exports whose file counts are remembered.
+     */
+    private static final int MAX_FILE_COUNTS = 16;
+
+    /**
+     * The number of files of the latest exports, by the resources exported.
+     */
+    @SuppressWarnings({ "rawtypes", "serial" })
+    private static final Map fileCounts = new LinkedHashMap() {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > MAX_FILE_COUNTS;
+        }
+    };
+
     private IFileExporter exporter;
 
     private String destinationFilename;
@@ -58,6 +139,55 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
     private boolean createLeadupStructure = true;
 
     private int tarMode = -1;//Initialize to -1 signifies that it should behave as if before modified (version 1.14)
+
+    private boolean useParallelCompression = false;
+
+    private boolean storeIncompressible = false;
+
+    private CompressionPolicy compressionPolicy;
+
+    private boolean readAhead = false;
+
+    private SubMonitor progress;
+
+    private int estimatedFiles;
+
+    private boolean counted;
+
+    private int filesWritten;
+
+    private String manifestFilename;
+
+    private String baseManifestFilename;
+
+    private boolean manifestHashes = false;
+
+    private ExportManifest manifest;
+
+    private ExportManifest baseManifest;
+
+    @SuppressWarnings("rawtypes")
+    private Set seen = new HashSet();
+
+    @SuppressWarnings("rawtypes")
+    private LinkedList pending = new LinkedList();
+
+    /**
+     * A resource waiting to be exported in its turn.
+     */
+    private static class PendingResource {
+        final IResource resource;
+        final String destinationName;
+        @SuppressWarnings("rawtypes")
+        final Future contents;
+
+        @SuppressWarnings("rawtypes")
+        PendingResource(IResource resource, String destinationName, Future contents) {
+            this.resource = resource;
+            this.destinationName = destinationName;
+            this.contents = contents;
+        }
+    }
     
     /**
      *	Create an instance of this class.  Use this constructor if you wish to
@@ -66,17 +196,15 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
      *	@param resources java.util.Vector
      *	@param filename java.lang.String
      */
-    @SuppressWarnings("rawtypes")
+    @SuppressWarnings({ "rawtypes", "unchecked" })
 	public ArchiveFileExportOperation(List resources, String filename) {
         super();
 
         // Eliminate redundancies in list of resources being exported
-        Iterator elementsEnum = resources.iterator();
-        while (elementsEnum.hasNext()) {
-            IResource currentResource = (IResource) elementsEnum.next();
-            if (isDescendent(resources, currentResource)) {
-				elementsEnum.remove(); //Removes currentResource;
-			}
+        List topResources = removeDescendents(resources);
+        if (topResources.size() < resources.size()) {
+            resources.clear();
+            resources.addAll(topResources);
         }
 
         resourcesToExport = resources;
@@ -108,6 +236,10 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
     @SuppressWarnings("rawtypes")
 	public ArchiveFileExportOperation(IResource res, List resources, String filename) {
         this(res, filename);
+        if (resources != null) {
+            // Eliminate redundancies, without changing the caller's list
+            resources = removeDescendents(resources);
+        }
         resourcesToExport = resources;
     }
     
@@ -126,8 +258,7 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
 	public ArchiveFileExportOperation(IResource res, List resources,
 			String filename, int compressMode) throws IllegalArgumentException {
 		this(res, resources, filename);
-		if ((compressMode < TarFileExporter.UNCOMPRESSED)
-				|| (compressMode > TarFileExporter.BZIP2))
+		if (!TarFileExporter.isSupported(compressMode))
 			throw new IllegalArgumentException(DataTransferMessages.ArchiveFileExportOperation_unsupportedTarMode);
 		tarMode = compressMode;
 	}
@@ -194,16 +325,15 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
     
     /**
      * Creates and returns the string that should be used as the name of the entry in the archive.
-     * @param exportResource the resource to export
-     * @param leadupDepth the number of resource levels to be included in the path including the resourse itself.
+     * @param fullPath the full path of the resource to export
+     * @param leadupSegments the number of leading segments of the path to leave out when
+     *                       the containment hierarchy is not to be included.
      */
-    private String createDestinationName(int leadupDepth, IResource exportResource) {
-        IPath fullPath = exportResource.getFullPath();
+    private String createDestinationName(IPath fullPath, int leadupSegments) {
         if (createLeadupStructure) {
         	return fullPath.makeRelative().toString();
         }
-		return fullPath.removeFirstSegments(
-                fullPath.segmentCount() - leadupDepth).toString();
+		return fullPath.removeFirstSegments(leadupSegments).toString();
     }
 
     /**
@@ -219,43 +349,425 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
 			return;
 		}
 
-        if (exportResource.getType() == IResource.FILE) {
-        	String destinationName = createDestinationName(leadupDepth, exportResource);
-            monitor.subTask(destinationName);
+        ExportVisitor visitor = new ExportVisitor(exportResource.getFullPath()
+                .segmentCount() - leadupDepth);
+        try {
+            exportResource.accept(visitor, IResource.NONE);
+            visitor.finish();
+        } catch (CoreException e) {
+            addError(NLS.bind(DataTransferMessages.DataTransfer_errorExporting, exportResource.getFullPath()), e);
+        } catch (OperationCanceledException e) {
+            throw new InterruptedException();
+        }
+    }
 
-            try {
-                exporter.write((IFile) exportResource, destinationName);
-            } catch (IOException e) {
-                addError(NLS.bind(DataTransferMessages.DataTransfer_errorExporting, exportResource.getFullPath().makeRelative(), e.getMessage()), e);
-            } catch (CoreException e) {
-                addError(NLS.bind(DataTransferMessages.DataTransfer_errorExporting, exportResource.getFullPath().makeRelative(), e.getMessage()), e);
-            }
+    /**
+     * Visits a resource and the resources below it in a single pass,
+     * exporting the files and the empty containers.  A container is known
+     * to be empty when the next resource visited is not below it.
+     */
+    private class ExportVisitor implements IResourceProxyVisitor {
+        private final int leadupSegments;
 
-            monitor.worked(1);
-            ModalContext.checkCanceled(monitor);
-        } else {
-            IResource[] children = null;
+        // The container visited last while nothing was visited below it.
+        private IContainer container;
+        private IPath containerPath;
 
-            try {
-                children = ((IContainer) exportResource).members();
-            } catch (CoreException e) {
-                // this should never happen because an #isAccessible check is done before #members is invoked
-                addError(NLS.bind(DataTransferMessages.DataTransfer_errorExporting, exportResource.getFullPath()), e);
+        ExportVisitor(int leadupSegments) {
+            this.leadupSegments = leadupSegments;
+        }
+
+        /* (non-Javadoc)
+         * @see org.eclipse.core.resources.IResourceProxyVisitor#visit(org.eclipse.core.resources.IResourceProxy)
+         */
+        @SuppressWarnings("unchecked")
+        public boolean visit(IResourceProxy proxy) {
+            IPath path = proxy.requestFullPath();
+            if (container != null && !containerPath.isPrefixOf(path)) {
+                finish();
             }
-            
-            if (children.length == 0) { // create an entry for empty containers, see bug 278402
-            	String destinationName = createDestinationName(leadupDepth, exportResource);
+            container = null;
+            if (proxy.getType() == IResource.FILE) {
+                IFile file = (IFile) proxy.requestResource();
+                String destinationName = createDestinationName(path, leadupSegments);
                 try {
-            		exporter.write((IContainer) exportResource, destinationName + IPath.SEPARATOR);
-                } catch (IOException e) {
-                    addError(NLS.bind(DataTransferMessages.DataTransfer_errorExporting, exportResource.getFullPath().makeRelative(), e.getMessage()), e);
+                    if (isUnchanged(file, destinationName)) {
+                        worked();
+                        ModalContext.checkCanceled(monitor);
+                    } else if (readAhead) {
+                        submitRead(file, destinationName);
+                    } else {
+                        writeFile(file, destinationName, null);
+                    }
+                } catch (InterruptedException e) {
+                    throw new OperationCanceledException();
                 }
+                return false;
+            }
+            if (!proxy.isAccessible()) {
+                return false;
             }
+            if (baseManifest != null) {
+                // The folder is still there, whether it is empty or not.
+                seen.add(createDestinationName(path, leadupSegments)
+                        + IPath.SEPARATOR);
+            }
+            container = (IContainer) proxy.requestResource();
+            containerPath = path;
+            return true;
+        }
 
-            for (int i = 0; i < children.length; i++) {
-				exportResource(children[i], leadupDepth + 1);
-			}
+        /**
+         * Exports the container visited last if nothing was found below
+         * it, see bug 278402.  Called at the end of the walk as well.
+         */
+        void finish() {
+            if (container == null) {
+                return;
+            }
+            String destinationName = createDestinationName(containerPath, leadupSegments);
+            if (isUnchanged(container, destinationName)) {
+                container = null;
+                return;
+            }
+            if (!pending.isEmpty()) {
+                try {
+                    addPending(new PendingResource(container, destinationName, null));
+                } catch (InterruptedException e) {
+                    throw new OperationCanceledException();
+                }
+            } else {
+                writeContainer(container, destinationName);
+            }
+            container = null;
+        }
+    }
+
+    /**
+     *  Answer whether a file is exported unchanged since the base manifest,
+     *  so it need not be written again, and record it in the manifest if
+     *  so.  A file is unchanged if it has the same size and time stamp as
+     *  recorded, or, when hashes are kept, the same size and content hash.
+     *
+     *  @param file the file
+     *  @param destinationName the name of the entry
+     *  @return true if the file is to be left out of the archive
+     */
+    @SuppressWarnings("unchecked")
+    private boolean isUnchanged(IFile file, String destinationName) {
+        if (baseManifest == null) {
+            return false;
+        }
+        seen.add(destinationName);
+        ExportManifest.Record base = baseManifest.get(destinationName);
+        if (base == null || base.size == ExportManifest.FOLDER) {
+            return false;
+        }
+        try {
+            long timeStamp = file.getLocalTimeStamp();
+            long size = getLength(file);
+            if (size != base.size) {
+                return false;
+            }
+            String hash = base.hash;
+            if (timeStamp != base.timeStamp) {
+                if (!manifestHashes || hash == null) {
+                    return false;
+                }
+                hash = ExportManifest.hash(file.getContents(false));
+                if (!hash.equals(base.hash)) {
+                    return false;
+                }
+            }
+            if (manifest != null) {
+                manifest.put(destinationName, new ExportManifest.Record(size,
+                        timeStamp, hash));
+            }
+            return true;
+        } catch (IOException e) {
+            // Export the file, which reports the problem if it persists.
+            return false;
+        } catch (CoreException e) {
+            return false;
+        }
+    }
 
+    /**
+     *  Answer whether an empty container was exported already according to
+     *  the base manifest, and record it in the manifest if so.
+     *
+     *  @param container the container
+     *  @param destinationName the name of the entry, without the separator
+     *  @return true if the container is to be left out of the archive
+     */
+    private boolean isUnchanged(IContainer container, String destinationName) {
+        if (baseManifest == null) {
+            return false;
+        }
+        String name = destinationName + IPath.SEPARATOR;
+        if (baseManifest.get(name) == null) {
+            return false;
+        }
+        recordContainer(container, name);
+        return true;
+    }
+
+    /**
+     *  Record a file written to the archive in the manifest, if one is
+     *  kept.
+     *
+     *  @param file the file
+     *  @param destinationName the name of the entry
+     *  @param data the contents of the file, or <code>null</code> if they
+     *              are not in memory
+     */
+    private void recordFile(IFile file, String destinationName, byte[] data)
+            throws IOException, CoreException {
+        if (manifest == null) {
+            return;
+        }
+        long size = data != null ? data.length : getLength(file);
+        String hash = null;
+        if (manifestHashes) {
+            hash = data != null ? ExportManifest.hash(data)
+                    : ExportManifest.hash(file.getContents(false));
+        }
+        manifest.put(destinationName, new ExportManifest.Record(size,
+                file.getLocalTimeStamp(), hash));
+    }
+
+    /**
+     *  Record an empty container in the manifest, if one is kept.
+     *
+     *  @param container the container
+     *  @param name the name of the entry, with the separator
+     */
+    private void recordContainer(IContainer container, String name) {
+        if (manifest != null) {
+            manifest.put(name, new ExportManifest.Record(ExportManifest.FOLDER,
+                    container.getLocalTimeStamp(), null));
+        }
+    }
+
+    /**
+     *  Answer the size of a file in the file system.
+     *
+     *  @param file the file
+     *  @return the size, or -1 if the file has no location
+     */
+    private static long getLength(IFile file) throws CoreException {
+        URI location = file.getLocationURI();
+        if (location == null) {
+            return -1;
+        }
+        return EFS.getStore(location).fetchInfo().getLength();
+    }
+
+    /**
+     *  Write the list of the entries of the base manifest that were not
+     *  exported this time to the archive, if there are any.
+     *
+     *  @see #DELETIONS_ENTRY
+     */
+    @SuppressWarnings("rawtypes")
+    private void writeDeletions() {
+        StringBuffer deletions = new StringBuffer();
+        for (Iterator i = baseManifest.names(); i.hasNext();) {
+            String name = (String) i.next();
+            if (!seen.contains(name)) {
+                deletions.append(ExportManifest.escape(name)).append('\n');
+            }
+        }
+        if (deletions.length() == 0) {
+            return;
+        }
+        try {
+            ((IReadAheadExporter) exporter).write(DELETIONS_ENTRY, deletions
+                    .toString().getBytes("UTF-8"), System.currentTimeMillis()); //$NON-NLS-1$
+        } catch (IOException e) {
+            addError(NLS.bind(DataTransferMessages.DataTransfer_errorExporting, DELETIONS_ENTRY, e.getMessage()), e);
+        }
+    }
+
+    /**
+     *  Write a file to the archive, with its contents if they were read
+     *  ahead, and report the progress.
+     *
+     *  @param file the file
+     *  @param destinationName the name of the entry
+     *  @param contents the contents read ahead, or <code>null</code> to
+     *                  let the exporter read the file
+     */
+    @SuppressWarnings("rawtypes")
+    private void writeFile(IFile file, String destinationName, Future contents)
+            throws InterruptedException {
+        monitor.subTask(destinationName);
+
+        try {
+            byte[] data = contents == null ? null : getContents(contents);
+            if (data != null) {
+                ((IReadAheadExporter) exporter).write(file, destinationName, data);
+            } else {
+                exporter.write(file, destinationName);
+            }
+            recordFile(file, destinationName, data);
+        } catch (IOException e) {
+            addError(NLS.bind(DataTransferMessages.DataTransfer_errorExporting, file.getFullPath().makeRelative(), e.getMessage()), e);
+        } catch (CoreException e) {
+            addError(NLS.bind(DataTransferMessages.DataTransfer_errorExporting, file.getFullPath().makeRelative(), e.getMessage()), e);
+        }
+
+        worked();
+        ModalContext.checkCanceled(monitor);
+    }
+
+    /**
+     *  Report a file as written.  The work left is the number of files
+     *  still expected, but no less than a share of the files written so
+     *  far: a quarter of them when the estimate comes from the previous
+     *  export, all of them when it is only a guess.  So the progress slows
+     *  down rather than stalls at the end when the estimate is too low.
+     */
+    private void worked() {
+        int written = counted ? filesWritten / 4 : filesWritten;
+        progress.setWorkRemaining(Math.max(estimatedFiles - filesWritten,
+                written + 1));
+        progress.worked(1);
+        filesWritten++;
+    }
+
+    /**
+     *  Answer a key for the resources exported, under which the number of
+     *  files found is remembered.
+     *
+     *  @return the full paths of the resources
+     */
+    @SuppressWarnings("rawtypes")
+    private String getFileCountKey() {
+        if (resourcesToExport == null) {
+            return resource.getFullPath().toString();
+        }
+        StringBuffer key = new StringBuffer();
+        for (Iterator i = resourcesToExport.iterator(); i.hasNext();) {
+            key.append(((IResource) i.next()).getFullPath()).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     *  Write the entry of an empty container to the archive.
+     *
+     *  @param container the container
+     *  @param destinationName the name of the entry, without the separator
+     */
+    private void writeContainer(IContainer container, String destinationName) {
+        try {
+            exporter.write(container, destinationName + IPath.SEPARATOR);
+            recordContainer(container, destinationName + IPath.SEPARATOR);
+        } catch (IOException e) {
+            addError(NLS.bind(DataTransferMessages.DataTransfer_errorExporting, container.getFullPath().makeRelative(), e.getMessage()), e);
+        }
+    }
+
+    /**
+     *  Start reading a file on a reader thread and queue it for writing,
+     *  writing out queued resources while too many files are read ahead.
+     *
+     *  @param file the file
+     *  @param destinationName the name of the entry
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void submitRead(final IFile file, String destinationName)
+            throws InterruptedException {
+        Future contents = WorkerPool.getReaderExecutor().submit(new Callable() {
+            public Object call() throws IOException, CoreException {
+                return readContents(file);
+            }
+        });
+        addPending(new PendingResource(file, destinationName, contents));
+    }
+
+    /**
+     *  Queue a resource behind the ones queued before it.
+     *
+     *  @param resource the resource to write in its turn
+     */
+    @SuppressWarnings("unchecked")
+    private void addPending(PendingResource resource) throws InterruptedException {
+        pending.add(resource);
+        while (pending.size() > MAX_READ_AHEAD) {
+            writeNext();
+        }
+    }
+
+    /**
+     *  Write the first queued resource to the archive.
+     */
+    private void writeNext() throws InterruptedException {
+        PendingResource next = (PendingResource) pending.removeFirst();
+        if (next.contents == null) {
+            writeContainer((IContainer) next.resource, next.destinationName);
+        } else {
+            writeFile((IFile) next.resource, next.destinationName, next.contents);
+        }
+    }
+
+    /**
+     *  Give up on the files still being read ahead.
+     */
+    @SuppressWarnings("rawtypes")
+    private void cancelPending() {
+        for (Iterator i = pending.iterator(); i.hasNext();) {
+            Future contents = ((PendingResource) i.next()).contents;
+            if (contents != null) {
+                contents.cancel(false);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     *  Read all of a file that is small enough to be read ahead.  Runs on a
+     *  reader thread.
+     *
+     *  @param file the file
+     *  @return the contents, or <code>null</code> if the exporter is to
+     *          read the file itself
+     */
+    private static byte[] readContents(IFile file) throws IOException,
+            CoreException {
+        URI location = file.getLocationURI();
+        if (location == null) {
+            return null;
+        }
+        long length = EFS.getStore(location).fetchInfo().getLength();
+        if (length > READ_AHEAD_MAX_SIZE) {
+            return null;
+        }
+        return ZipFileExporter.readContents(file, (int) length);
+    }
+
+    /**
+     *  Wait for the contents of a file read ahead.
+     *
+     *  @param contents the read in progress
+     *  @return the contents, or <code>null</code> if the exporter is to
+     *          read the file itself
+     */
+    @SuppressWarnings("rawtypes")
+    private static byte[] getContents(Future contents) throws IOException,
+            CoreException, InterruptedException {
+        try {
+            return (byte[]) contents.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof CoreException) {
+                throw (CoreException) cause;
+            }
+            throw new IOException(cause.toString());
         }
     }
 
@@ -299,22 +811,83 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
 	 * @exception java.io.IOException
 	 */
 	protected void initialize() throws IOException {
+		if (storeIncompressible) {
+			compressionPolicy = new CompressionPolicy();
+		}
 		if (useTarFormat) {
+			TarFileExporter tarExporter = null;
 			if (tarMode != -1) {
 				try {
-					exporter = new TarFileExporter(destinationFilename, tarMode);
+					tarExporter = new TarFileExporter(destinationFilename, tarMode,
+							useParallelCompression);
 				} catch (IllegalArgumentException iae) {
 					// Should not happen because it is caught by the
 					// constructor.
 				}
 			} else
-				exporter = new TarFileExporter(destinationFilename,
+				tarExporter = new TarFileExporter(destinationFilename,
 						useCompression);
+			if (tarExporter != null) {
+				tarExporter.setCompressionPolicy(compressionPolicy);
+			}
+			exporter = tarExporter;
 		} else {
-			exporter = new ZipFileExporter(destinationFilename, useCompression);
+			ZipFileExporter zipExporter = new ZipFileExporter(destinationFilename,
+					useCompression, useParallelCompression);
+			zipExporter.setCompressionPolicy(compressionPolicy);
+			exporter = zipExporter;
 		}
+		// Reading into memory would keep the files of uncompressed tar
+		// archives from being copied by the file system.
+		readAhead = useParallelCompression
+				&& exporter instanceof IReadAheadExporter
+				&& !(exporter instanceof TarFileExporter
+						&& ((TarFileExporter) exporter).isUncompressed());
 	}
 
+    /**
+     *  Answer the resources of the list that are not below other resources
+     *  of the list, in their order.  The resources are looked up in a hash
+     *  set, so the cost grows with the number of resources times the depth
+     *  of the tree, not with the square of the number of resources.
+     *
+     *  @return a new list
+     *  @param resources java.util.List
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static List removeDescendents(List resources) {
+        Set selected = new HashSet(resources);
+        List result = new ArrayList(resources.size());
+        for (Iterator i = resources.iterator(); i.hasNext();) {
+            IResource current = (IResource) i.next();
+            if (!isDescendent(selected, current)) {
+                result.add(current);
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Answer a boolean indicating whether the passed child is below one or
+     *  more members of the passed set of resources
+     *
+     *  @return boolean
+     *  @param resources java.util.Set
+     *  @param child org.eclipse.core.resources.IResource
+     */
+    @SuppressWarnings("rawtypes")
+    private static boolean isDescendent(Set resources, IResource child) {
+        IResource parent = child;
+        while (parent.getType() != IResource.PROJECT
+                && parent.getType() != IResource.ROOT) {
+            parent = parent.getParent();
+            if (resources.contains(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      *  Answer a boolean indicating whether the passed child is a descendent
      *  of one or more members of the passed resources collection
@@ -341,10 +914,22 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
      *	Export the resources that were previously specified for export
      *	(or if a single resource was specified then export it recursively)
      */
+    @SuppressWarnings("unchecked")
     public void run(IProgressMonitor progressMonitor)
             throws InvocationTargetException, InterruptedException {
         this.monitor = progressMonitor;
 
+        baseManifest = null;
+        if (baseManifestFilename != null) {
+            try {
+                baseManifest = ExportManifest.read(new File(baseManifestFilename));
+            } catch (IOException e) {
+                throw new InvocationTargetException(e, NLS.bind(DataTransferMessages.ArchiveExport_cannotReadManifest, e.getMessage()));
+            }
+        }
+        manifest = manifestFilename == null ? null : new ExportManifest();
+        seen.clear();
+
         try {
             initialize();
         } catch (IOException e) {
@@ -352,24 +937,33 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
         }
 
         try {
-            // ie.- a single resource for recursive export was specified
-            int totalWork = IProgressMonitor.UNKNOWN;
-            try {
-                if (resourcesToExport == null) {
-					totalWork = countChildrenOf(resource);
-				} else {
-					totalWork = countSelectedResources();
-				}
-            } catch (CoreException e) {
-                // Should not happen
+            String key = getFileCountKey();
+            Integer fileCount;
+            synchronized (fileCounts) {
+                fileCount = (Integer) fileCounts.get(key);
             }
-            monitor.beginTask(DataTransferMessages.DataTransfer_exportingTitle, totalWork);
+            counted = fileCount != null;
+            estimatedFiles = counted ? fileCount.intValue()
+                    : DEFAULT_FILE_ESTIMATE;
+            filesWritten = 0;
+            progress = SubMonitor.convert(progressMonitor,
+                    DataTransferMessages.DataTransfer_exportingTitle, estimatedFiles);
+            monitor = progress;
             if (resourcesToExport == null) {
                 exportResource(resource);
             } else {
                 // ie.- a list of specific resources to export was specified
                 exportSpecifiedResources();
             }
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            if (baseManifest != null) {
+                writeDeletions();
+            }
+            synchronized (fileCounts) {
+                fileCounts.put(key, Integer.valueOf(filesWritten));
+            }
 
             try {
                 exporter.finished();
@@ -378,7 +972,17 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
                         e,
                         NLS.bind(DataTransferMessages.ZipExport_cannotClose, e.getMessage()));
             }
+            if (manifest != null) {
+                try {
+                    manifest.write(new File(manifestFilename));
+                } catch (IOException e) {
+                    throw new InvocationTargetException(
+                            e,
+                            NLS.bind(DataTransferMessages.ArchiveExport_cannotWriteManifest, e.getMessage()));
+                }
+            }
         } finally {
+            cancelPending();
             monitor.done();
         }
     }
@@ -403,6 +1007,84 @@ public class ArchiveFileExportOperation implements IRunnableWithProgress {
         useCompression = value;
     }
     
+    /**
+     *	Set this boolean indicating whether the archive may be compressed
+     *	on several threads at once, and files read ahead of the compression
+     *	on several threads
+     *
+     *	@param value boolean
+     *	@since 3.4
+     */
+    public void setUseParallelCompression(boolean value) {
+        useParallelCompression = value;
+    }
+    
+    /**
+     *	Set this boolean indicating whether files that are already
+     *	compressed, judging by their name or their first bytes, should be
+     *	stored rather than compressed again.  Zip archives store such
+     *	files; gzip compressed tar archives write them without compression.
+     *
+     *	@param value boolean
+     *	@since 3.4
+     */
+    public void setStoreIncompressible(boolean value) {
+        storeIncompressible = value;
+    }
+
+    /**
+     *	Set the file to write the manifest of the export to when it is
+     *	done: the name, size, local time stamp and optionally the content
+     *	hash of each entry, including the entries left out because they did
+     *	not change since the base manifest.
+     *
+     *	@param filename the manifest file, or <code>null</code> for none
+     *	@see #setBaseManifest(String)
+     *	@since 3.4
+     */
+    public void setManifest(String filename) {
+        manifestFilename = filename;
+    }
+
+    /**
+     *	Set the manifest of an earlier export to export the changes since.
+     *	Only the files that are new or have changed are written to the
+     *	archive, followed by the {@link #DELETIONS_ENTRY} entry.  The base
+     *	manifest may be the same file as the manifest written by this
+     *	export.
+     *
+     *	@param filename the manifest file, or <code>null</code> to export
+     *	       all files
+     *	@since 3.4
+     */
+    public void setBaseManifest(String filename) {
+        baseManifestFilename = filename;
+    }
+
+    /**
+     *	Set this boolean indicating whether the manifest should keep the
+     *	content hash of each file.  A file whose time stamp changed but whose
+     *	contents hash the same as in the base manifest is then left out.
+     *	Hashing reads each exported file once more.
+     *
+     *	@param value boolean
+     *	@since 3.4
+     */
+    public void setManifestHashes(boolean value) {
+        manifestHashes = value;
+    }
+
+    /**
+     *	Answer the number of bytes of the files that the last run stored
+     *	rather than compressed, see {@link #setStoreIncompressible(boolean)}.
+     *
+     *	@return long
+     *	@since 3.4
+     */
+    public long getSkippedBytes() {
+        return compressionPolicy == null ? 0 : compressionPolicy.getSkippedBytes();
+    }
+    
     /**
      * Set this boolean indicating whether the file should be output
      * in tar.gz format rather than .zip format.
@@ -40,24 +40,11 @@ public class ArchiveFileManipulations {
 			return false;
 		}
 
-		TarFile tarFile = null;
 		try {
-			tarFile = new TarFile(fileName);
-		} catch (TarException tarException) {
-			return false;
+			return ArchiveFormat.detect(fileName).isTar();
 		} catch (IOException ioException) {
 			return false;
-		} finally {
-			if (tarFile != null) {
-				try {
-					tarFile.close();
-				} catch (IOException e) {
-					// ignore
-				}
-			}
 		}
-
-		return true;
 	}
 
 	/**
@@ -73,22 +60,33 @@ public class ArchiveFileManipulations {
 			return false;
 		}
 
-		ZipFile zipFile = null;
 		try {
-			zipFile = new ZipFile(fileName);
+			return ArchiveFormat.detect(fileName).isZip();
 		} catch (IOException ioException) {
 			return false;
-		} finally {
-			if (zipFile != null) {
-				try {
-					zipFile.close();
-				} catch (IOException e) {
-					// ignore
-				}
-			}
 		}
+	}
 
-		return true;
+	/**
+	 * Opens the tar file with the given name for import.  Compressed
+	 * archives record decompressor checkpoints for random access.
+	 * <p>
+	 * Uncompressed archives are not mapped into memory with
+	 * {@link MappedTarFile}: its mappings outlive <code>close()</code>, which
+	 * on Windows keeps the file locked until they are garbage collected.
+	 * </p>
+	 * 
+	 * @param fileName
+	 *            the tar file
+	 * @return the opened tar file
+	 * @throws TarException
+	 *             if the file is not in tar format
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @since 3.4
+	 */
+	public static TarFile openTarFile(String fileName) throws TarException, IOException {
+		return new TarFile(fileName, TarFile.DEFAULT_CHECKPOINT_MEMORY);
 	}
 
 	/**
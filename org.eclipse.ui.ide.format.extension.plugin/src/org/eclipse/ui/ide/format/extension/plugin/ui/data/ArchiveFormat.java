@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.tukaani.xz.XZInputStream;
+
+/**
+ * Describes the format of an archive file as recognized from its first
+ * bytes: the compression, if any, and whether the file is a zip archive
+ * or a tar archive.  Only an uncompressed file that is neither is opened
+ * as a zip archive, to find a central directory behind a prefix such as
+ * a self-extractor.  Otherwise the file is read once; the descriptor of the last
+ * file detected is cached, so the validation done by the import pages on
+ * every change does not reopen the file.
+ *
+ * @since 3.4
+ */
+public class ArchiveFormat {
+	/**
+	 * The file is not compressed.
+	 */
+	public static final int NONE = 0;
+
+	/**
+	 * The file is gzip compressed.
+	 */
+	public static final int GZIP = 1;
+
+	/**
+	 * The file is bzip2 compressed.
+	 */
+	public static final int BZIP2 = 2;
+
+	/**
+	 * The file is xz compressed.
+	 */
+	public static final int XZ = 3;
+
+	/**
+	 * The file is made of LZ4 frames.
+	 */
+	public static final int LZ4 = 4;
+
+	/**
+	 * The file is Zstandard compressed.
+	 */
+	public static final int ZSTD = 5;
+
+	/**
+	 * Number of bytes read from the start of the file, one tar header.
+	 */
+	private static final int SNIFF_LENGTH = 512;
+
+	private static ArchiveFormat lastDetected;
+
+	private static Boolean aircompressorAvailable;
+
+	private final File file;
+	private final long length;
+	private final long lastModified;
+	private final int compression;
+	private final boolean zip;
+	private final boolean blockedGzip;
+	private final boolean independentLZ4;
+	private Boolean tar;
+
+	private ArchiveFormat(File file, byte[] header, int count) {
+		this.file = file;
+		this.length = file.length();
+		this.lastModified = file.lastModified();
+		if (count >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b) {
+			compression = GZIP;
+		} else if (count >= 4 && header[0] == 'B' && header[1] == 'Z'
+				&& header[2] == 'h' && header[3] >= '1' && header[3] <= '9') {
+			compression = BZIP2;
+		} else if (count >= 6 && (header[0] & 0xff) == 0xfd && header[1] == '7'
+				&& header[2] == 'z' && header[3] == 'X' && header[4] == 'Z'
+				&& header[5] == 0) {
+			compression = XZ;
+		} else if (count >= 4 && header[0] == 0x04 && header[1] == 0x22
+				&& header[2] == 0x4d && header[3] == 0x18) {
+			compression = LZ4;
+		} else if (count >= 4 && header[0] == 0x28 && (header[1] & 0xff) == 0xb5
+				&& header[2] == 0x2f && (header[3] & 0xff) == 0xfd) {
+			compression = ZSTD;
+		} else {
+			compression = NONE;
+		}
+		blockedGzip = compression == GZIP
+				&& ParallelGzipInputStream.getMemberSize(header, count) > 0;
+		// Frame descriptor flags: independent blocks, without a dictionary.
+		independentLZ4 = compression == LZ4 && count >= 5
+				&& (header[4] & 0x21) == 0x20;
+		// Local file header, or the end of central directory record of an
+		// empty archive.
+		boolean zipHeader = compression == NONE && count >= 4 && header[0] == 'P'
+				&& header[1] == 'K'
+				&& ((header[2] == 3 && header[3] == 4) || (header[2] == 5 && header[3] == 6));
+		if (compression == NONE) {
+			tar = Boolean.valueOf(!zipHeader && count == SNIFF_LENGTH
+					&& TarHeader.check(header) == TarHeader.VALID);
+		}
+		// Self-extracting and other prefixed zip archives start with
+		// something else; their central directory is found from the end.
+		zip = zipHeader || (compression == NONE && !tar.booleanValue()
+				&& hasCentralDirectory(file));
+	}
+
+	/**
+	 * Returns whether the file can be opened as a zip archive, for zip
+	 * archives that do not start with a zip header.
+	 *
+	 * @param file the file
+	 * @return true if the central directory of a zip archive is found
+	 */
+	private static boolean hasCentralDirectory(File file) {
+		ZipFile zipFile = null;
+		try {
+			zipFile = new ZipFile(file);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (zipFile != null) {
+				try {
+					zipFile.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Detects the format of the given file.
+	 *
+	 * @param file the file
+	 * @return the format descriptor
+	 * @throws IOException if the file cannot be read
+	 */
+	public static ArchiveFormat detect(File file) throws IOException {
+		synchronized (ArchiveFormat.class) {
+			ArchiveFormat format = lastDetected;
+			if (format != null && format.file.equals(file)
+					&& format.length == file.length()
+					&& format.lastModified == file.lastModified()) {
+				return format;
+			}
+		}
+		byte[] header = new byte[SNIFF_LENGTH];
+		int count = 0;
+		InputStream in = new FileInputStream(file);
+		try {
+			count = readFully(in, header);
+		} finally {
+			in.close();
+		}
+		ArchiveFormat format = new ArchiveFormat(file, header, count);
+		synchronized (ArchiveFormat.class) {
+			lastDetected = format;
+		}
+		return format;
+	}
+
+	/**
+	 * Detects the format of the file with the given name.
+	 *
+	 * @param fileName the file name
+	 * @return the format descriptor
+	 * @throws IOException if the file cannot be read
+	 * @see #detect(File)
+	 */
+	public static ArchiveFormat detect(String fileName) throws IOException {
+		return detect(new File(fileName));
+	}
+
+	/**
+	 * Returns the compression of the file, one of {@link #NONE},
+	 * {@link #GZIP}, {@link #BZIP2}, {@link #XZ}, {@link #LZ4} or
+	 * {@link #ZSTD}.
+	 *
+	 * @return the compression
+	 */
+	public int getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Returns whether the file is compressed.
+	 *
+	 * @return true if the file is compressed
+	 */
+	public boolean isCompressed() {
+		return compression != NONE;
+	}
+
+	/**
+	 * Returns whether this plug-in can decompress the file.  LZ4 files are
+	 * always read, with aircompressor where it is available and with
+	 * commons-compress otherwise.
+	 *
+	 * @return true if the file is uncompressed or can be decompressed
+	 */
+	public boolean isSupportedCompression() {
+		return compression == LZ4 || isSupported(compression);
+	}
+
+	/**
+	 * Returns whether this plug-in can decompress and compress files with
+	 * the given compression.  LZ4 and Zstandard need the optional
+	 * aircompressor library.
+	 *
+	 * @param compression one of the compression constants of this class
+	 * @return true if the compression is supported
+	 */
+	public static boolean isSupported(int compression) {
+		switch (compression) {
+		case NONE:
+		case GZIP:
+		case BZIP2:
+		case XZ:
+			return true;
+		case LZ4:
+		case ZSTD:
+			return isAircompressorAvailable();
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether the optional aircompressor library can be loaded,
+	 * which also takes a Java 8 runtime.
+	 */
+	private static synchronized boolean isAircompressorAvailable() {
+		if (aircompressorAvailable == null) {
+			boolean available;
+			try {
+				Class.forName("io.airlift.compress.zstd.ZstdCompressor", false, //$NON-NLS-1$
+						ArchiveFormat.class.getClassLoader());
+				available = true;
+			} catch (ClassNotFoundException e) {
+				available = false;
+			} catch (LinkageError e) {
+				available = false;
+			}
+			aircompressorAvailable = Boolean.valueOf(available);
+		}
+		return aircompressorAvailable.booleanValue();
+	}
+
+	/**
+	 * Returns whether the file is a blocked gzip file, made of gzip members
+	 * that record their compressed size, such as BGZF files.
+	 *
+	 * @return true for a blocked gzip file
+	 */
+	public boolean isBlockedGzip() {
+		return blockedGzip;
+	}
+
+	/**
+	 * Returns whether the file is a zip archive.
+	 *
+	 * @return true for a zip archive
+	 */
+	public boolean isZip() {
+		return zip;
+	}
+
+	/**
+	 * Returns whether the file, once decompressed, starts with a valid tar
+	 * header.  For compressed files the first header is decompressed the
+	 * first time this is asked.
+	 *
+	 * @return true for a tar archive
+	 */
+	public synchronized boolean isTar() {
+		if (tar == null) {
+			boolean valid = false;
+			if (isSupportedCompression()) {
+				try {
+					InputStream in = openDecompressed();
+					try {
+						byte[] header = new byte[SNIFF_LENGTH];
+						valid = readFully(in, header) == SNIFF_LENGTH
+								&& TarHeader.check(header) == TarHeader.VALID;
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					// Not a valid compressed stream.
+				}
+			}
+			tar = Boolean.valueOf(valid);
+		}
+		return tar.booleanValue();
+	}
+
+	/**
+	 * Opens the file, decompressing it according to its format.
+	 *
+	 * @return a stream of the uncompressed contents
+	 * @throws IOException if the file cannot be read, or its compression
+	 *             is not supported
+	 */
+	InputStream openDecompressed() throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			switch (compression) {
+			case NONE:
+				return in;
+			case GZIP:
+				return new GZIPInputStream(in);
+			case BZIP2:
+				// Files written by parallel compressors hold several streams.
+				return new BZip2CompressorInputStream(in, true);
+			case XZ:
+				// Also reads the concatenated streams of parallel writers.
+				return new XZInputStream(new BufferedInputStream(in));
+			case LZ4:
+				if (independentLZ4 && isAircompressorAvailable()) {
+					return OptionalCodecs.openLZ4(in);
+				}
+				// Linked blocks, as written by lz4 -BD, or no aircompressor.
+				return new FramedLZ4CompressorInputStream(in, true);
+			case ZSTD:
+				if (!isAircompressorAvailable()) {
+					break;
+				}
+				return OptionalCodecs.openZstd(in);
+			}
+			throw new IOException("unsupported compression"); //$NON-NLS-1$
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] b) throws IOException {
+		int count = 0;
+		while (count < b.length) {
+			int n = in.read(b, count, b.length - count);
+			if (n < 0) {
+				break;
+			}
+			count += n;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,506 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Input stream for bzip2 files that decodes one compressed block at a
+ * time.  Blocks are located by their 48-bit magic number, which may sit
+ * at any bit offset, and each block is handed to
+ * <code>BZip2CompressorInputStream</code> wrapped in a synthetic
+ * single-block stream.  Because bzip2 blocks carry no state from earlier
+ * blocks, every block start is a checkpoint from which the file can be
+ * reopened.  Concatenated streams are read as one stream.
+ * <p>
+ * In parallel mode the blocks ahead of the reader are decoded on the
+ * {@link WorkerPool} while it consumes the current one, and handed out in
+ * file order.
+ * </p>
+ */
+class BZip2BlockInputStream extends InputStream {
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long EOS_MAGIC = 0x177245385090L;
+	private static final long MAGIC_MASK = 0xffffffffffffL;
+
+	private static final byte[] STREAM_HEADER = { 'B', 'Z', 'h', '9' };
+
+	// Well above the size of any compressed 900k block.
+	private static final long MAX_BLOCK_BITS = 16L * 1024 * 1024;
+
+	private InputStream in;
+	private byte[] buf = new byte[1 << 20];
+	private int bufLen = 0;
+	private long bufOffset;
+	private boolean inputEnd = false;
+
+	private CheckpointIndex index;
+	private long position = 0;
+
+	// Bit position of the next block magic, or -1 at the end of the data.
+	private long nextBlock;
+	private long magicFound;
+	private InputStream blockStream;
+	private byte[] single = new byte[1];
+
+	// Blocks being decoded ahead of the reader, in file order; no executor
+	// means blocks are decoded as they are read.
+	private ExecutorService executor;
+	private int maxPending;
+	@SuppressWarnings("rawtypes")
+	private LinkedList pending = new LinkedList();
+
+	/**
+	 * A block, located in the file and wrapped in a stream of its own.
+	 */
+	private static class Block {
+		final long start;
+		final long bits;
+		final byte[] stream;
+		@SuppressWarnings("rawtypes")
+		Future decoded;
+
+		Block(long start, long bits, byte[] stream) {
+			this.start = start;
+			this.bits = bits;
+			this.stream = stream;
+		}
+	}
+
+	/**
+	 * Opens the given bzip2 file from the start, recording a checkpoint
+	 * for each block in <code>index</code>.
+	 *
+	 * @param file the bzip2 file
+	 * @param index the index to record checkpoints in, may be
+	 *            <code>null</code>
+	 * @param parallel whether to decode blocks on the worker pool
+	 * @throws IOException if the file cannot be read or is not a bzip2 file
+	 */
+	BZip2BlockInputStream(File file, CheckpointIndex index, boolean parallel)
+			throws IOException {
+		this.in = new FileInputStream(file);
+		setParallel(parallel);
+		this.index = index;
+		this.bufOffset = 0;
+		try {
+			nextBlock = findStream(0);
+			if (nextBlock == -2) {
+				throw new IOException("Stream is not in the BZip2 format"); //$NON-NLS-1$
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the given bzip2 file at a block recorded earlier.
+	 *
+	 * @param file the bzip2 file
+	 * @param checkpoint the checkpoint to resume from
+	 * @param parallel whether to decode blocks on the worker pool
+	 * @throws IOException
+	 */
+	BZip2BlockInputStream(File file, CheckpointIndex.Checkpoint checkpoint,
+			boolean parallel) throws IOException {
+		FileInputStream fileIn = new FileInputStream(file);
+		this.in = fileIn;
+		setParallel(parallel);
+		this.bufOffset = checkpoint.in >>> 3;
+		try {
+			fileIn.getChannel().position(bufOffset);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		nextBlock = checkpoint.in;
+		position = checkpoint.out;
+	}
+
+	private void setParallel(boolean parallel) {
+		if (parallel) {
+			executor = WorkerPool.getExecutor();
+			// Keep every thread busy while the reader works through the
+			// blocks that are done.
+			maxPending = 2 * WorkerPool.getThreads();
+		}
+	}
+
+	/**
+	 * Checks for a stream header at the given byte offset and locates the
+	 * first block of the stream.
+	 *
+	 * @param offset byte offset in the file
+	 * @return the bit position of the first block, -1 if there is no
+	 *         further data or -2 if there is no stream header
+	 * @throws IOException
+	 */
+	private long findStream(long offset) throws IOException {
+		while (true) {
+			if (!ensure(offset + 3)) {
+				return -1;
+			}
+			int i = (int) (offset - bufOffset);
+			int level = buf[i + 3];
+			if (buf[i] != 'B' || buf[i + 1] != 'Z' || buf[i + 2] != 'h'
+					|| level < '1' || level > '9') {
+				return -2;
+			}
+			long magic = findMagic((offset + 4) * 8);
+			if (magic < 0) {
+				throw new IOException("unexpected end of stream"); //$NON-NLS-1$
+			}
+			if (magicFound == BLOCK_MAGIC) {
+				return magic;
+			}
+			// An empty stream: skip its end marker and combined CRC.
+			offset = (magic + 48 + 32 + 7) / 8;
+		}
+	}
+
+	/**
+	 * Finds the next block or end-of-stream magic at or after the given
+	 * bit position, and sets <code>magicFound</code> to the one found.
+	 *
+	 * @param from bit position to search from
+	 * @return bit position of the magic, or -1 if the input ends first
+	 * @throws IOException
+	 */
+	private long findMagic(long from) throws IOException {
+		long word = 0;
+		long i = from >>> 3;
+		while (ensure(i)) {
+			word = (word << 8) | (buf[(int) (i - bufOffset)] & 0xff);
+			i++;
+			for (int shift = 0; shift < 8; shift++) {
+				long candidate = (word >>> shift) & MAGIC_MASK;
+				if (candidate == BLOCK_MAGIC || candidate == EOS_MAGIC) {
+					long start = i * 8 - 48 - shift;
+					if (start >= from) {
+						magicFound = candidate;
+						return start;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Makes sure the byte at the given file offset is in the buffer.  Bytes
+	 * before the current block are dropped from the buffer as needed.
+	 *
+	 * @param offset the byte offset in the file
+	 * @return false if the file ends before that offset
+	 * @throws IOException
+	 */
+	private boolean ensure(long offset) throws IOException {
+		while (offset >= bufOffset + bufLen) {
+			if (inputEnd) {
+				return false;
+			}
+			long keep = nextBlock >= 0 ? Math.max(nextBlock >>> 3, bufOffset) : bufOffset;
+			int drop = (int) Math.min(keep - bufOffset, bufLen);
+			if (drop > 0) {
+				System.arraycopy(buf, drop, buf, 0, bufLen - drop);
+				bufLen -= drop;
+				bufOffset += drop;
+			}
+			if (bufLen == buf.length) {
+				byte[] bigger = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, bigger, 0, bufLen);
+				buf = bigger;
+			}
+			int n = in.read(buf, bufLen, buf.length - bufLen);
+			if (n < 0) {
+				inputEnd = true;
+			} else {
+				bufLen += n;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns <code>count</code> bits of <code>in</code> starting at the
+	 * given bit position.
+	 */
+	private static long getBits(byte[] in, long from, int count) {
+		long value = 0;
+		for (int k = 0; k < count; k++) {
+			long bit = from + k;
+			int b = in[(int) (bit >>> 3)];
+			value = (value << 1) | ((b >>> (7 - (bit & 7))) & 1);
+		}
+		return value;
+	}
+
+	/**
+	 * Sets <code>count</code> bits of <code>out</code> starting at the
+	 * given bit position.
+	 */
+	private static void putBits(byte[] out, long at, long value, int count) {
+		for (int k = 0; k < count; k++) {
+			long bit = at + k;
+			int mask = 0x80 >>> (bit & 7);
+			if (((value >>> (count - 1 - k)) & 1) != 0) {
+				out[(int) (bit >>> 3)] |= mask;
+			} else {
+				out[(int) (bit >>> 3)] &= ~mask;
+			}
+		}
+	}
+
+	/**
+	 * Builds a complete bzip2 stream holding the block of <code>bits</code>
+	 * bits found at the given bit position of <code>in</code>.  The
+	 * combined CRC of a single-block stream is the CRC of its block, which
+	 * follows the block magic.
+	 *
+	 * @param in the data holding the block
+	 * @param start bit position of the block magic in <code>in</code>
+	 * @param bits the length of the block
+	 * @return the stream
+	 */
+	private static byte[] wrapBlock(byte[] in, long start, long bits) {
+		int headerBits = STREAM_HEADER.length * 8;
+		byte[] out = new byte[(int) ((headerBits + bits + 48 + 32 + 7) / 8)];
+		System.arraycopy(STREAM_HEADER, 0, out, 0, STREAM_HEADER.length);
+		int shift = (int) (start & 7);
+		int from = (int) (start >>> 3);
+		int count = (int) ((bits + 7) / 8);
+		for (int i = 0; i < count; i++) {
+			int hi = in[from + i] << shift;
+			int lo = 0;
+			if (shift > 0 && from + i + 1 < in.length) {
+				lo = (in[from + i + 1] & 0xff) >>> (8 - shift);
+			}
+			out[STREAM_HEADER.length + i] = (byte) (hi | lo);
+		}
+		long crc = getBits(in, start + 48, 32);
+		long at = headerBits + bits;
+		putBits(out, at, EOS_MAGIC, 48);
+		putBits(out, at + 48, crc, 32);
+		int pad = (int) (out.length * 8L - (at + 80));
+		putBits(out, at + 80, 0, pad);
+		return out;
+	}
+
+	/**
+	 * Joins two consecutive blocks into one, for when the second one began
+	 * at a block magic that was really part of the data of the first.
+	 */
+	private static Block merge(Block first, Block second) {
+		int headerBits = STREAM_HEADER.length * 8;
+		long bits = first.bits + second.bits;
+		byte[] joined = new byte[(int) ((bits + 7) / 8)];
+		for (long k = 0; k < first.bits; k += 32) {
+			int count = (int) Math.min(32, first.bits - k);
+			putBits(joined, k, getBits(first.stream, headerBits + k, count), count);
+		}
+		for (long k = 0; k < second.bits; k += 32) {
+			int count = (int) Math.min(32, second.bits - k);
+			putBits(joined, first.bits + k,
+					getBits(second.stream, headerBits + k, count), count);
+		}
+		return new Block(first.start, bits, wrapBlock(joined, 0, bits));
+	}
+
+	/**
+	 * Decodes a whole single-block stream.
+	 */
+	private static byte[] decode(byte[] stream) throws IOException {
+		InputStream blockIn = new BZip2CompressorInputStream(
+				new ByteArrayInputStream(stream));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(stream.length * 4);
+		byte[] buffer = new byte[65536];
+		int n;
+		while ((n = blockIn.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		blockIn.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Locates the next block and copies it out of the input buffer.
+	 *
+	 * @return the block, or <code>null</code> at the end of the data
+	 * @throws IOException
+	 */
+	private Block scanBlock() throws IOException {
+		if (nextBlock < 0) {
+			return null;
+		}
+		long start = nextBlock;
+		long end = findMagic(start + 48);
+		if (end < 0) {
+			throw new IOException("unexpected end of stream"); //$NON-NLS-1$
+		}
+		Block block = new Block(start, end - start,
+				wrapBlock(buf, start - bufOffset * 8, end - start));
+		if (magicFound == BLOCK_MAGIC) {
+			nextBlock = end;
+		} else {
+			long streamEnd = (end + 48 + 32 + 7) / 8;
+			// Pretend the next block is here so ensure() keeps this data.
+			nextBlock = streamEnd * 8;
+			nextBlock = findStream(streamEnd);
+			if (nextBlock == -2) {
+				// Trailing garbage is ignored.
+				nextBlock = -1;
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * Returns the next block, from the blocks decoded ahead if there are
+	 * any.
+	 */
+	private Block nextBlock() throws IOException {
+		if (!pending.isEmpty()) {
+			return (Block) pending.removeFirst();
+		}
+		return scanBlock();
+	}
+
+	/**
+	 * Starts decoding the next block.
+	 *
+	 * @return false at the end of the data
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private boolean openNextBlock() throws IOException {
+		if (executor != null) {
+			while (pending.size() < maxPending) {
+				final Block block = scanBlock();
+				if (block == null) {
+					break;
+				}
+				block.decoded = executor.submit(new Callable() {
+					public Object call() throws IOException {
+						return decode(block.stream);
+					}
+				});
+				pending.add(block);
+			}
+		}
+		Block block = nextBlock();
+		if (block == null) {
+			return false;
+		}
+		if (index != null) {
+			index.add(new CheckpointIndex.Checkpoint(position, block.start, null));
+		}
+		byte[] data = null;
+		IOException failure = null;
+		if (block.decoded != null) {
+			try {
+				data = (byte[]) block.decoded.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				failure = (e.getCause() instanceof IOException) ? (IOException) e.getCause()
+						: new IOException(e.getCause().toString());
+			}
+		} else {
+			// Decoded whole, so a block cut short by a magic number in its
+			// data fails here, where it can still be merged with the next.
+			try {
+				data = decode(block.stream);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		while (data == null) {
+			// The block data happened to contain a magic number, so the
+			// block really extends to the next one.
+			Block next = nextBlock();
+			if (next == null || block.bits + next.bits > MAX_BLOCK_BITS) {
+				throw failure;
+			}
+			if (next.decoded != null) {
+				next.decoded.cancel(false);
+			}
+			block = merge(block, next);
+			try {
+				data = decode(block.stream);
+			} catch (IOException e) {
+				// Not that one either.
+			}
+		}
+		blockStream = new ByteArrayInputStream(data);
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (blockStream == null && !openNextBlock()) {
+				return -1;
+			}
+			int n = blockStream.read(b, off, len);
+			if (n > 0) {
+				position += n;
+				return n;
+			}
+			blockStream.close();
+			blockStream = null;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() throws IOException {
+		int size = read(single, 0, 1);
+		if (size < 0) {
+			return size;
+		}
+		return single[0] & 0xff;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	@SuppressWarnings("rawtypes")
+	public void close() throws IOException {
+		nextBlock = -1;
+		blockStream = null;
+		for (Iterator i = pending.iterator(); i.hasNext();) {
+			((Block) i.next()).decoded.cancel(false);
+		}
+		pending.clear();
+		in.close();
+	}
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Positions in a compressed file at which decompression can be restarted,
+ * recorded while the file is read through for the first time.  The
+ * checkpoints are kept within a memory budget: when the budget is
+ * exceeded every other checkpoint is dropped and the minimum distance
+ * between checkpoints doubles.
+ */
+class CheckpointIndex {
+	/**
+	 * Rough per-checkpoint overhead in bytes, not counting the history.
+	 */
+	private static final int CHECKPOINT_OVERHEAD = 48;
+
+	/**
+	 * A restart position in a compressed stream.
+	 */
+	static class Checkpoint {
+		/**
+		 * Offset in the uncompressed data.
+		 */
+		final long out;
+
+		/**
+		 * Position in the compressed file, in bits.
+		 */
+		final long in;
+
+		/**
+		 * Uncompressed data preceding the checkpoint that the decompressor
+		 * needs to resume, or <code>null</code> if none is needed.
+		 */
+		final byte[] history;
+
+		Checkpoint(long out, long in, byte[] history) {
+			this.out = out;
+			this.in = in;
+			this.history = history;
+		}
+
+		long getMemorySize() {
+			return CHECKPOINT_OVERHEAD + (history == null ? 0 : history.length);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private List checkpoints = new ArrayList();
+	private long span;
+	private long memoryLimit;
+	private long memoryUsed = 0;
+
+	/**
+	 * Creates an empty index.
+	 *
+	 * @param span the minimum distance between two checkpoints in
+	 *            uncompressed bytes
+	 * @param memoryLimit the memory budget of the index in bytes
+	 */
+	CheckpointIndex(long span, long memoryLimit) {
+		this.span = span;
+		this.memoryLimit = memoryLimit;
+	}
+
+	/**
+	 * Returns whether a checkpoint at the given uncompressed offset would
+	 * be recorded.  Lets callers avoid building checkpoints that would be
+	 * thrown away.
+	 *
+	 * @param out offset in the uncompressed data
+	 * @return true if a checkpoint is due
+	 */
+	synchronized boolean isDue(long out) {
+		if (checkpoints.isEmpty()) {
+			return true;
+		}
+		Checkpoint last = (Checkpoint) checkpoints.get(checkpoints.size() - 1);
+		return out > last.out && out - last.out >= span;
+	}
+
+	/**
+	 * Records a checkpoint.  Checkpoints must be added in increasing
+	 * uncompressed order.
+	 *
+	 * @param checkpoint the checkpoint
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void add(Checkpoint checkpoint) {
+		if (!isDue(checkpoint.out)) {
+			return;
+		}
+		checkpoints.add(checkpoint);
+		memoryUsed += checkpoint.getMemorySize();
+		while (memoryUsed > memoryLimit && checkpoints.size() > 1) {
+			thin();
+		}
+	}
+
+	/**
+	 * Drops every other checkpoint, keeping the first one.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void thin() {
+		List kept = new ArrayList(checkpoints.size() / 2 + 1);
+		memoryUsed = 0;
+		for (int i = 0; i < checkpoints.size(); i += 2) {
+			Checkpoint checkpoint = (Checkpoint) checkpoints.get(i);
+			kept.add(checkpoint);
+			memoryUsed += checkpoint.getMemorySize();
+		}
+		checkpoints = kept;
+		span = Math.max(span * 2, 1);
+	}
+
+	/**
+	 * Returns the last checkpoint at or before the given uncompressed
+	 * offset.
+	 *
+	 * @param out offset in the uncompressed data
+	 * @return the checkpoint, or <code>null</code> if there is none
+	 */
+	synchronized Checkpoint find(long out) {
+		int low = 0;
+		int high = checkpoints.size() - 1;
+		Checkpoint found = null;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			Checkpoint checkpoint = (Checkpoint) checkpoints.get(mid);
+			if (checkpoint.out <= out) {
+				found = checkpoint;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return found;
+	}
+}
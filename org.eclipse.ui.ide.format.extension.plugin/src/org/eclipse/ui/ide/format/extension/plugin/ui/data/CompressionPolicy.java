@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides which files are not worth compressing: those whose extension
+ * names a compressed format, and those whose first bytes look random,
+ * that is whose bytes have an entropy too close to 8 bits for any coding
+ * to save much.  The zip exporter stores such files, the tar exporter
+ * writes them into its gzip stream without compression, and both count
+ * their bytes as skipped.
+ * <p>
+ * A policy is used by one exporting thread at a time.
+ * </p>
+ */
+class CompressionPolicy {
+	/**
+	 * The number of bytes at the start of a file that are looked at.
+	 */
+	static final int SAMPLE_SIZE = 4 * 1024;
+
+	/**
+	 * Data that does not shrink by at least this many parts in a hundred
+	 * is not worth compressing.
+	 */
+	private static final int MIN_SAVING = 3;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static final Set EXTENSIONS = new HashSet(Arrays.asList(new String[] {
+			// Archives and compressed files
+			"zip", "jar", "war", "ear", "apk", "gz", "tgz", "bz2", "tbz2", "xz", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$ //$NON-NLS-10$
+			"txz", "lz4", "zst", "tzst", "7z", "rar", "cab", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+			// Images, audio and video
+			"png", "jpg", "jpeg", "gif", "webp", "mp3", "ogg", "flac", "mp4", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$
+			"m4a", "mkv", "avi", "mov", "webm", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+			// Zip based documents
+			"docx", "xlsx", "pptx", "odt", "ods", "odp" })); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+
+	/**
+	 * Samples with more bits of entropy per byte than this would not
+	 * shrink by {@link #MIN_SAVING} percent even with ideal coding of
+	 * their bytes.
+	 */
+	private static final double MAX_ENTROPY = 8.0 * (100 - MIN_SAVING) / 100;
+
+	private final int[] counts = new int[256];
+	private long skippedBytes = 0;
+
+	/**
+	 * Returns whether the name of a file says it is already compressed.
+	 *
+	 * @param name the name or path of the file
+	 * @return true for a known compressed format
+	 */
+	static boolean hasCompressedExtension(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot < 0 || dot < name.lastIndexOf('/')) {
+			return false;
+		}
+		return EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Returns whether data of the given size is worth storing compressed
+	 * at the given compressed size.
+	 *
+	 * @param length the size of the data
+	 * @param compressedLength the size of the compressed data
+	 * @return true if compressing saves enough
+	 */
+	static boolean isWorthCompressing(long length, long compressedLength) {
+		return compressedLength * 100 < length * (100 - MIN_SAVING);
+	}
+
+	/**
+	 * Decides whether a file is worth compressing, by its name and then by
+	 * the entropy of its first bytes.  Samples shorter than
+	 * {@link #SAMPLE_SIZE} are too short to tell, so they are compressed.
+	 *
+	 * @param name the name or path of the file
+	 * @param sample the first bytes of the file
+	 * @param length the number of bytes in the sample, at most
+	 *            {@link #SAMPLE_SIZE}
+	 * @return true if the file should be compressed
+	 */
+	boolean shouldCompress(String name, byte[] sample, int length) {
+		if (hasCompressedExtension(name)) {
+			return false;
+		}
+		if (length < SAMPLE_SIZE) {
+			return true;
+		}
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < length; i++) {
+			counts[sample[i] & 0xff]++;
+		}
+		// The entropy in bits per byte: log2(length) - sum(c * log2(c)) / length
+		double sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			int c = counts[i];
+			if (c > 1) {
+				sum += c * Math.log(c);
+			}
+		}
+		double entropy = (Math.log(length) - sum / length) / Math.log(2);
+		return entropy <= MAX_ENTROPY;
+	}
+
+	/**
+	 * Counts the bytes of a file that was not compressed because of this
+	 * policy.
+	 *
+	 * @param length the size of the file
+	 */
+	void skipped(long length) {
+		skippedBytes += length;
+	}
+
+	/**
+	 * Returns the number of bytes that were not compressed because of this
+	 * policy.
+	 *
+	 * @return the total size of the files skipped
+	 */
+	long getSkippedBytes() {
+		return skippedBytes;
+	}
+}
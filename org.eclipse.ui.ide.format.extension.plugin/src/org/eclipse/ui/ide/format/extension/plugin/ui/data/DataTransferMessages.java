@@ -105,6 +105,9 @@ public class DataTransferMessages extends NLS {
 	public static String WizardArchiveFileResourceExportPage_UncompressedTarFormat;
 	public static String WizardArchiveFileResourceExportPage_GzipCompressedTarFormat;
 	public static String WizardArchiveFileResourceExportPage_Bzip2CompressedTarFormat;
+	public static String WizardArchiveFileResourceExportPage_XzCompressedTarFormat;
+	public static String WizardArchiveFileResourceExportPage_Lz4CompressedTarFormat;
+	public static String WizardArchiveFileResourceExportPage_ZstdCompressedTarFormat;
 	// --- Export Wizards ---
 	public static String DataTransfer_export;
 
@@ -145,6 +148,11 @@ public class DataTransferMessages extends NLS {
 	public static String ArchiveExport_destinationEmpty;
 	public static String ArchiveExport_saveInZipFormat;
 	public static String ArchiveExport_saveInTarFormat;
+	public static String ArchiveExport_compressInParallel;
+	public static String ArchiveExport_storeIncompressible;
+	public static String ArchiveExport_skippedBytes;
+	public static String ArchiveExport_cannotReadManifest;
+	public static String ArchiveExport_cannotWriteManifest;
 	public static String ArchiveFileExportOperation_unsupportedTarMode;
 	
 	public static String TarImport_invalid_tar_format;
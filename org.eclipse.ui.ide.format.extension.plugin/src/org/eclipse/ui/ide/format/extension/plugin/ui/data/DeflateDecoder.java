@@ -0,0 +1,618 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Decoder for raw DEFLATE data (RFC 1951).  Unlike
+ * <code>java.util.zip.Inflater</code> this decoder exposes the exact bit
+ * position of every block boundary and can be restarted at such a
+ * position given the 32 KiB of output that preceded it, which is what
+ * random access into a gzip stream needs.
+ * <p>
+ * {@link #read(byte[], int, int)} never reads past a block boundary, so
+ * callers can look at {@link #atBlockBoundary()} between reads.
+ * </p>
+ */
+class DeflateDecoder {
+	/**
+	 * The size of the DEFLATE history window.
+	 */
+	static final int WINDOW_SIZE = 32768;
+
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+	private static final int HEADER = 0;
+	private static final int STORED = 1;
+	private static final int CODES = 2;
+	private static final int DONE = 3;
+
+	private static final int MAX_CODE_BITS = 15;
+
+	private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11,
+			13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131,
+			163, 195, 227, 258 };
+	private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1,
+			1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25,
+			33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049,
+			3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4,
+			4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+	private static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9,
+			6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+	private static Huffman fixedLengthCodes;
+	private static Huffman fixedDistanceCodes;
+
+	private InputStream in;
+	private byte[] inBuf = new byte[65536];
+	private int inPos = 0;
+	private int inLen = 0;
+	private long inBufOffset;
+
+	private long bitBuf = 0;
+	private int bitCount = 0;
+
+	private byte[] window = new byte[WINDOW_SIZE];
+	private int windowPos = 0;
+	private long totalOut = 0;
+
+	private int state = HEADER;
+	private boolean lastBlock = false;
+	private int storedRemaining;
+	private int copyLength = 0;
+	private int copyDistance;
+	// A symbol decoded ahead while looking for the end of a block.
+	private int pendingSymbol = -1;
+	private Huffman lengthCodes;
+	private Huffman distanceCodes;
+	private Huffman dynamicLengthCodes = new Huffman(288, 10);
+	private Huffman dynamicDistanceCodes = new Huffman(32, 8);
+	private Huffman codeLengthCodes = new Huffman(19, 7);
+	private int[] lengths = new int[288 + 32];
+
+	/**
+	 * Creates a decoder reading from the given stream.
+	 *
+	 * @param in the compressed input
+	 * @param offset the offset of the next byte of <code>in</code> in the
+	 *            underlying file, used to report positions
+	 */
+	DeflateDecoder(InputStream in, long offset) {
+		this.in = in;
+		this.inBufOffset = offset;
+	}
+
+	/**
+	 * Creates a decoder that resumes decoding at a block boundary.
+	 *
+	 * @param in the compressed input, positioned at the byte holding the
+	 *            first bit of the block
+	 * @param offset the offset of the next byte of <code>in</code>
+	 * @param bits the number of bits of the first byte that belong to the
+	 *            previous block
+	 * @param history the output preceding the block, at most
+	 *            {@link #WINDOW_SIZE} bytes
+	 * @throws IOException
+	 */
+	DeflateDecoder(InputStream in, long offset, int bits, byte[] history)
+			throws IOException {
+		this(in, offset);
+		if (bits > 0) {
+			int b = readAlignedByte();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			bitBuf = b >>> bits;
+			bitCount = 8 - bits;
+		}
+		int length = Math.min(history.length, WINDOW_SIZE);
+		System.arraycopy(history, history.length - length, window, 0, length);
+		windowPos = length & WINDOW_MASK;
+		totalOut = length;
+	}
+
+	/**
+	 * Prepares the decoder for a new DEFLATE stream following the current
+	 * one in the same input, such as the next member of a gzip file.
+	 */
+	void reset() {
+		state = HEADER;
+		lastBlock = false;
+		copyLength = 0;
+		pendingSymbol = -1;
+		windowPos = 0;
+		totalOut = 0;
+	}
+
+	/**
+	 * Returns whether the decoder is positioned between two blocks of the
+	 * stream and more blocks follow.
+	 *
+	 * @return true at a restartable position
+	 */
+	boolean atBlockBoundary() {
+		return state == HEADER && copyLength == 0 && !lastBlock;
+	}
+
+	/**
+	 * Returns whether the final block of the stream has been decoded.
+	 *
+	 * @return true at the end of the DEFLATE stream
+	 */
+	boolean finished() {
+		return state == DONE
+				|| (state == HEADER && lastBlock && copyLength == 0);
+	}
+
+	/**
+	 * Returns the position of the next unread bit, in bits from the start
+	 * of the underlying file.
+	 *
+	 * @return bit position
+	 */
+	long getBitPosition() {
+		return (inBufOffset + inPos) * 8 - bitCount;
+	}
+
+	/**
+	 * Returns a copy of the most recent output, at most
+	 * {@link #WINDOW_SIZE} bytes.
+	 *
+	 * @return the history needed to resume at the current position
+	 */
+	byte[] getHistory() {
+		int length = (int) Math.min(totalOut, WINDOW_SIZE);
+		byte[] history = new byte[length];
+		int start = (windowPos - length) & WINDOW_MASK;
+		int first = Math.min(length, WINDOW_SIZE - start);
+		System.arraycopy(window, start, history, 0, first);
+		System.arraycopy(window, 0, history, first, length - first);
+		return history;
+	}
+
+	/**
+	 * Discards the bits up to the next byte boundary.
+	 */
+	void alignToByte() {
+		int drop = bitCount & 7;
+		bitBuf >>>= drop;
+		bitCount -= drop;
+	}
+
+	/**
+	 * Reads the next byte of the input.  Only valid on a byte boundary.
+	 *
+	 * @return the byte, or -1 at the end of the input
+	 * @throws IOException
+	 */
+	int readAlignedByte() throws IOException {
+		if (bitCount >= 8) {
+			int b = (int) (bitBuf & 0xff);
+			bitBuf >>>= 8;
+			bitCount -= 8;
+			return b;
+		}
+		if (inPos == inLen && !refill()) {
+			return -1;
+		}
+		return inBuf[inPos++] & 0xff;
+	}
+
+	/**
+	 * Reads decompressed data.  Stops early at the end of a block.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 */
+	int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int n = 0;
+		while (n < len) {
+			if (copyLength > 0) {
+				n += copy(b, off + n, len - n);
+				continue;
+			}
+			switch (state) {
+			case HEADER:
+				if (lastBlock) {
+					state = DONE;
+					break;
+				}
+				if (n > 0) {
+					// Give the caller a chance to see the block boundary.
+					return n;
+				}
+				readBlockHeader();
+				break;
+			case STORED:
+				if (storedRemaining == 0) {
+					state = HEADER;
+					break;
+				}
+				n += readStored(b, off + n, len - n);
+				break;
+			case CODES:
+				n += decodeSymbols(b, off + n, len - n);
+				break;
+			default:
+				return n > 0 ? n : -1;
+			}
+		}
+		endBlockIfDrained();
+		return n;
+	}
+
+	/**
+	 * Moves on to the end of the current block if all its output has been
+	 * read.  A read that fills the whole buffer stops right before the end
+	 * of block code; without this the next read would run through the
+	 * boundary without the caller seeing it.
+	 *
+	 * @throws IOException
+	 */
+	private void endBlockIfDrained() throws IOException {
+		if (copyLength > 0) {
+			return;
+		}
+		if (state == STORED && storedRemaining == 0) {
+			state = HEADER;
+		} else if (state == CODES && pendingSymbol < 0 && fill(MAX_CODE_BITS)) {
+			int symbol = decode(lengthCodes);
+			if (symbol == 256) {
+				state = HEADER;
+			} else {
+				pendingSymbol = symbol;
+			}
+		}
+	}
+
+	private void readBlockHeader() throws IOException {
+		lastBlock = bits(1) == 1;
+		int type = bits(2);
+		switch (type) {
+		case 0:
+			alignToByte();
+			int length = readAlignedShort();
+			int check = readAlignedShort();
+			if (length != (~check & 0xffff)) {
+				throw new ZipException("invalid stored block lengths"); //$NON-NLS-1$
+			}
+			storedRemaining = length;
+			state = STORED;
+			break;
+		case 1:
+			lengthCodes = getFixedLengthCodes();
+			distanceCodes = fixedDistanceCodes;
+			state = CODES;
+			break;
+		case 2:
+			readDynamicCodes();
+			lengthCodes = dynamicLengthCodes;
+			distanceCodes = dynamicDistanceCodes;
+			state = CODES;
+			break;
+		default:
+			throw new ZipException("invalid block type"); //$NON-NLS-1$
+		}
+	}
+
+	private int readAlignedShort() throws IOException {
+		int lo = readAlignedByte();
+		int hi = readAlignedByte();
+		if (hi < 0) {
+			throw new EOFException();
+		}
+		return lo | (hi << 8);
+	}
+
+	private void readDynamicCodes() throws IOException {
+		int nlen = bits(5) + 257;
+		int ndist = bits(5) + 1;
+		int ncode = bits(4) + 4;
+		if (nlen > 286 || ndist > 30) {
+			throw new ZipException("bad counts"); //$NON-NLS-1$
+		}
+		int i;
+		for (i = 0; i < 19; i++) {
+			lengths[CODE_LENGTH_ORDER[i]] = i < ncode ? bits(3) : 0;
+		}
+		codeLengthCodes.build(lengths, 0, 19);
+
+		i = 0;
+		while (i < nlen + ndist) {
+			int symbol = decode(codeLengthCodes);
+			if (symbol < 16) {
+				lengths[i++] = symbol;
+				continue;
+			}
+			int repeat;
+			int value = 0;
+			if (symbol == 16) {
+				if (i == 0) {
+					throw new ZipException("repeat with no first length"); //$NON-NLS-1$
+				}
+				value = lengths[i - 1];
+				repeat = 3 + bits(2);
+			} else if (symbol == 17) {
+				repeat = 3 + bits(3);
+			} else {
+				repeat = 11 + bits(7);
+			}
+			if (i + repeat > nlen + ndist) {
+				throw new ZipException("too many lengths"); //$NON-NLS-1$
+			}
+			while (repeat-- > 0) {
+				lengths[i++] = value;
+			}
+		}
+		if (lengths[256] == 0) {
+			throw new ZipException("missing end-of-block code"); //$NON-NLS-1$
+		}
+		dynamicLengthCodes.build(lengths, 0, nlen);
+		dynamicDistanceCodes.build(lengths, nlen, ndist);
+	}
+
+	private int readStored(byte[] b, int off, int len) throws IOException {
+		int count = Math.min(len, storedRemaining);
+		int n = 0;
+		// Whole bytes left over in the bit buffer come first.
+		while (n < count && bitCount >= 8) {
+			b[off + n++] = (byte) bitBuf;
+			bitBuf >>>= 8;
+			bitCount -= 8;
+		}
+		while (n < count) {
+			if (inPos == inLen && !refill()) {
+				throw new EOFException();
+			}
+			int chunk = Math.min(count - n, inLen - inPos);
+			System.arraycopy(inBuf, inPos, b, off + n, chunk);
+			inPos += chunk;
+			n += chunk;
+		}
+		storedRemaining -= count;
+		addToWindow(b, off, count);
+		return count;
+	}
+
+	private void addToWindow(byte[] b, int off, int len) {
+		totalOut += len;
+		if (len >= WINDOW_SIZE) {
+			System.arraycopy(b, off + len - WINDOW_SIZE, window, 0, WINDOW_SIZE);
+			windowPos = 0;
+			return;
+		}
+		int first = Math.min(len, WINDOW_SIZE - windowPos);
+		System.arraycopy(b, off, window, windowPos, first);
+		System.arraycopy(b, off + first, window, 0, len - first);
+		windowPos = (windowPos + len) & WINDOW_MASK;
+	}
+
+	private int decodeSymbols(byte[] b, int off, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			int symbol = pendingSymbol;
+			if (symbol < 0) {
+				symbol = decode(lengthCodes);
+			} else {
+				pendingSymbol = -1;
+			}
+			if (symbol < 256) {
+				byte value = (byte) symbol;
+				window[windowPos] = value;
+				windowPos = (windowPos + 1) & WINDOW_MASK;
+				totalOut++;
+				b[off + n++] = value;
+				continue;
+			}
+			if (symbol == 256) {
+				state = HEADER;
+				break;
+			}
+			symbol -= 257;
+			if (symbol >= 29) {
+				throw new ZipException("invalid literal/length code"); //$NON-NLS-1$
+			}
+			copyLength = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+			symbol = decode(distanceCodes);
+			if (symbol >= 30) {
+				throw new ZipException("invalid distance code"); //$NON-NLS-1$
+			}
+			copyDistance = DIST_BASE[symbol] + bits(DIST_EXTRA[symbol]);
+			if (copyDistance > totalOut) {
+				throw new ZipException("invalid distance too far back"); //$NON-NLS-1$
+			}
+			n += copy(b, off + n, len - n);
+		}
+		return n;
+	}
+
+	private int copy(byte[] b, int off, int len) {
+		int count = Math.min(copyLength, len);
+		int from = (windowPos - copyDistance) & WINDOW_MASK;
+		int to = windowPos;
+		for (int i = 0; i < count; i++) {
+			byte value = window[from];
+			window[to] = value;
+			b[off + i] = value;
+			from = (from + 1) & WINDOW_MASK;
+			to = (to + 1) & WINDOW_MASK;
+		}
+		windowPos = to;
+		totalOut += count;
+		copyLength -= count;
+		return count;
+	}
+
+	private int decode(Huffman h) throws IOException {
+		if (fill(h.bits)) {
+			int entry = h.table[(int) bitBuf & ((1 << h.bits) - 1)];
+			if (entry != 0) {
+				int length = entry & 15;
+				bitBuf >>>= length;
+				bitCount -= length;
+				return entry >>> 4;
+			}
+		}
+		// Long code, or too close to the end of the input for a table
+		// lookup: decode one bit at a time.
+		int code = 0;
+		int first = 0;
+		int index = 0;
+		for (int length = 1; length <= MAX_CODE_BITS; length++) {
+			code |= bits(1);
+			int count = h.count[length];
+			if (code - count < first) {
+				return h.symbol[index + (code - first)];
+			}
+			index += count;
+			first += count;
+			first <<= 1;
+			code <<= 1;
+		}
+		throw new ZipException("invalid code"); //$NON-NLS-1$
+	}
+
+	private int bits(int need) throws IOException {
+		if (!fill(need)) {
+			throw new EOFException();
+		}
+		int value = (int) (bitBuf & ((1L << need) - 1));
+		bitBuf >>>= need;
+		bitCount -= need;
+		return value;
+	}
+
+	private boolean fill(int need) throws IOException {
+		while (bitCount < need) {
+			if (inPos == inLen && !refill()) {
+				return false;
+			}
+			bitBuf |= (long) (inBuf[inPos++] & 0xff) << bitCount;
+			bitCount += 8;
+		}
+		return true;
+	}
+
+	private boolean refill() throws IOException {
+		inBufOffset += inLen;
+		inPos = 0;
+		inLen = 0;
+		int n = in.read(inBuf, 0, inBuf.length);
+		if (n <= 0) {
+			return false;
+		}
+		inLen = n;
+		return true;
+	}
+
+	private static synchronized Huffman getFixedLengthCodes() throws ZipException {
+		if (fixedLengthCodes == null) {
+			int[] fixed = new int[288];
+			int i;
+			for (i = 0; i < 144; i++) {
+				fixed[i] = 8;
+			}
+			for (; i < 256; i++) {
+				fixed[i] = 9;
+			}
+			for (; i < 280; i++) {
+				fixed[i] = 7;
+			}
+			for (; i < 288; i++) {
+				fixed[i] = 8;
+			}
+			Huffman distance = new Huffman(30, 5);
+			int[] fixedDistance = new int[30];
+			for (i = 0; i < 30; i++) {
+				fixedDistance[i] = 5;
+			}
+			distance.build(fixedDistance, 0, 30);
+			fixedDistanceCodes = distance;
+			Huffman length = new Huffman(288, 9);
+			length.build(fixed, 0, 288);
+			fixedLengthCodes = length;
+		}
+		return fixedLengthCodes;
+	}
+
+	/**
+	 * Canonical Huffman code with a lookup table for the short codes.
+	 * Table entries hold the symbol and the code length; codes longer than
+	 * the table are decoded from the count and symbol arrays.
+	 */
+	private static class Huffman {
+		final int bits;
+		final int[] table;
+		final int[] count = new int[16];
+		final int[] symbol;
+		private final int[] offsets = new int[16];
+
+		Huffman(int symbols, int bits) {
+			this.bits = bits;
+			this.table = new int[1 << bits];
+			this.symbol = new int[symbols];
+		}
+
+		void build(int[] lengths, int start, int n) throws ZipException {
+			int i;
+			for (i = 0; i < 16; i++) {
+				count[i] = 0;
+			}
+			for (i = 0; i < n; i++) {
+				count[lengths[start + i]]++;
+			}
+			count[0] = 0;
+			int left = 1;
+			for (i = 1; i < 16; i++) {
+				left <<= 1;
+				left -= count[i];
+				if (left < 0) {
+					throw new ZipException("over-subscribed code"); //$NON-NLS-1$
+				}
+			}
+			offsets[1] = 0;
+			for (i = 1; i < 15; i++) {
+				offsets[i + 1] = offsets[i] + count[i];
+			}
+			for (i = 0; i < n; i++) {
+				if (lengths[start + i] != 0) {
+					symbol[offsets[lengths[start + i]]++] = i;
+				}
+			}
+
+			for (i = 0; i < table.length; i++) {
+				table[i] = 0;
+			}
+			int code = 0;
+			int index = 0;
+			for (int length = 1; length <= bits; length++) {
+				for (int k = 0; k < count[length]; k++) {
+					int reversed = Integer.reverse(code) >>> (32 - length);
+					int entry = (symbol[index] << 4) | length;
+					for (int j = reversed; j < table.length; j += 1 << length) {
+						table[j] = entry;
+					}
+					code++;
+					index++;
+				}
+				code <<= 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The entries of an export, with the size, local time stamp and optionally
+ * the content hash of each file, as kept in a manifest file next to the
+ * archive.  Comparing a later export against the manifest of an earlier
+ * one tells which files are new, changed or deleted.
+ * <p>
+ * The manifest is a UTF-8 text file.  After a header line, each line holds
+ * the size, the time stamp, the SHA-256 hash in hex or <code>-</code>, and
+ * the entry name, separated by tabs.  Folders are recorded with a size of
+ * -1.  Backslashes and line breaks in names are escaped with a backslash.
+ * </p>
+ */
+class ExportManifest {
+	private static final String HEADER = "# archive export manifest 1"; //$NON-NLS-1$
+	private static final String ENCODING = "UTF-8"; //$NON-NLS-1$
+	private static final String NO_HASH = "-"; //$NON-NLS-1$
+	private static final char[] HEX = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+	/**
+	 * The size recorded for a folder.
+	 */
+	static final long FOLDER = -1;
+
+	/**
+	 * The record of an entry.
+	 */
+	static class Record {
+		final long size;
+		final long timeStamp;
+		final String hash;
+
+		Record(long size, long timeStamp, String hash) {
+			this.size = size;
+			this.timeStamp = timeStamp;
+			this.hash = hash;
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private final Map records = new LinkedHashMap();
+
+	/**
+	 * Returns the record of an entry.
+	 *
+	 * @param name the entry name
+	 * @return the record, or <code>null</code> if there is none
+	 */
+	Record get(String name) {
+		return (Record) records.get(name);
+	}
+
+	/**
+	 * Records an entry, replacing any record of it.
+	 *
+	 * @param name the entry name
+	 * @param record the record
+	 */
+	@SuppressWarnings("unchecked")
+	void put(String name, Record record) {
+		records.put(name, record);
+	}
+
+	/**
+	 * Returns the names of the entries, in the order they were recorded.
+	 *
+	 * @return an iterator of strings
+	 */
+	@SuppressWarnings("rawtypes")
+	Iterator names() {
+		return records.keySet().iterator();
+	}
+
+	/**
+	 * Reads a manifest file.
+	 *
+	 * @param file the file
+	 * @return the manifest
+	 * @throws IOException if the file cannot be read or is not a manifest
+	 */
+	static ExportManifest read(File file) throws IOException {
+		ExportManifest manifest = new ExportManifest();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), ENCODING));
+		try {
+			if (!HEADER.equals(in.readLine())) {
+				throw new IOException("not an export manifest: " + file); //$NON-NLS-1$
+			}
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", 4); //$NON-NLS-1$
+				if (fields.length != 4) {
+					throw new IOException("corrupt export manifest: " + file); //$NON-NLS-1$
+				}
+				try {
+					manifest.put(unescape(fields[3]), new Record(
+							Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+							NO_HASH.equals(fields[2]) ? null : fields[2]));
+				} catch (NumberFormatException e) {
+					throw new IOException("corrupt export manifest: " + file); //$NON-NLS-1$
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return manifest;
+	}
+
+	/**
+	 * Writes this manifest to a file.
+	 *
+	 * @param file the file
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	void write(File file) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), ENCODING));
+		try {
+			out.write(HEADER);
+			out.write('\n');
+			for (Iterator i = records.entrySet().iterator(); i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				Record record = (Record) entry.getValue();
+				out.write(Long.toString(record.size));
+				out.write('\t');
+				out.write(Long.toString(record.timeStamp));
+				out.write('\t');
+				out.write(record.hash == null ? NO_HASH : record.hash);
+				out.write('\t');
+				out.write(escape((String) entry.getKey()));
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Escapes backslashes and line breaks in an entry name with a
+	 * backslash, so the name fits on one line.
+	 *
+	 * @param name the entry name
+	 * @return the escaped name
+	 */
+	static String escape(String name) {
+		if (name.indexOf('\\') < 0 && name.indexOf('\n') < 0
+				&& name.indexOf('\r') < 0) {
+			return name;
+		}
+		StringBuffer result = new StringBuffer(name.length() + 8);
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '\\') {
+				result.append("\\\\"); //$NON-NLS-1$
+			} else if (c == '\n') {
+				result.append("\\n"); //$NON-NLS-1$
+			} else if (c == '\r') {
+				result.append("\\r"); //$NON-NLS-1$
+			} else {
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	private static String unescape(String name) {
+		if (name.indexOf('\\') < 0) {
+			return name;
+		}
+		StringBuffer result = new StringBuffer(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c == '\\' && i + 1 < name.length()) {
+				c = name.charAt(++i);
+				if (c == 'n') {
+					c = '\n';
+				} else if (c == 'r') {
+					c = '\r';
+				}
+			}
+			result.append(c);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Returns the SHA-256 hash of some data.
+	 *
+	 * @param data the data
+	 * @return the hash in hex
+	 */
+	static String hash(byte[] data) {
+		MessageDigest digest = newDigest();
+		digest.update(data);
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Returns the SHA-256 hash of all of a stream, and closes it.
+	 *
+	 * @param in the stream
+	 * @return the hash in hex
+	 * @throws IOException
+	 */
+	static String hash(InputStream in) throws IOException {
+		MessageDigest digest = newDigest();
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java runtime has SHA-256.
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] result = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			result[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			result[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(result);
+	}
+}
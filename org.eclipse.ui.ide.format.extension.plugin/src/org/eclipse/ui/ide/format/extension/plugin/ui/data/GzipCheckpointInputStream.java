@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Input stream for gzip files that can record checkpoints while it is
+ * read, and that can later be reopened at any of these checkpoints.
+ * Checkpoints are taken at the start of gzip members and, within a
+ * member, at DEFLATE block boundaries together with the preceding 32 KiB
+ * of output.  Concatenated members are read as one stream.
+ */
+class GzipCheckpointInputStream extends InputStream {
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private InputStream in;
+	private DeflateDecoder decoder;
+	private CheckpointIndex index;
+	private CRC32 crc = new CRC32();
+	private boolean verify;
+	private long position = 0;
+	private long memberSize = 0;
+	private boolean eof = false;
+	private byte[] single = new byte[1];
+
+	/**
+	 * Opens the given gzip file from the start, recording checkpoints in
+	 * <code>index</code> as the data is read.
+	 *
+	 * @param file the gzip file
+	 * @param index the index to record checkpoints in, may be
+	 *            <code>null</code>
+	 * @throws IOException if the file cannot be read or is not a gzip file
+	 */
+	GzipCheckpointInputStream(File file, CheckpointIndex index) throws IOException {
+		this.in = new FileInputStream(file);
+		this.index = index;
+		this.decoder = new DeflateDecoder(in, 0);
+		try {
+			if (!readMemberHeader()) {
+				throw new ZipException("Not in GZIP format"); //$NON-NLS-1$
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the given gzip file at a checkpoint recorded earlier.
+	 *
+	 * @param file the gzip file
+	 * @param checkpoint the checkpoint to resume from
+	 * @throws IOException
+	 */
+	GzipCheckpointInputStream(File file, CheckpointIndex.Checkpoint checkpoint)
+			throws IOException {
+		this(file, checkpoint, null);
+	}
+
+	/**
+	 * Opens the given gzip file at a checkpoint recorded earlier, recording
+	 * further checkpoints in <code>index</code> as the data is read.
+	 *
+	 * @param file the gzip file
+	 * @param checkpoint the checkpoint to resume from
+	 * @param index the index to record checkpoints in, may be
+	 *            <code>null</code>
+	 * @throws IOException
+	 */
+	GzipCheckpointInputStream(File file, CheckpointIndex.Checkpoint checkpoint,
+			CheckpointIndex index) throws IOException {
+		FileInputStream fileIn = new FileInputStream(file);
+		this.in = fileIn;
+		this.index = index;
+		this.position = checkpoint.out;
+		long offset = checkpoint.in >>> 3;
+		try {
+			fileIn.getChannel().position(offset);
+			if (checkpoint.history == null) {
+				decoder = new DeflateDecoder(in, offset);
+				if (!readMemberHeader()) {
+					throw new ZipException("Not in GZIP format"); //$NON-NLS-1$
+				}
+			} else {
+				// The CRC of the member cannot be checked from the middle.
+				decoder = new DeflateDecoder(in, offset,
+						(int) (checkpoint.in & 7), checkpoint.history);
+				verify = false;
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the header of the next member.
+	 *
+	 * @return false if there is no further member
+	 * @throws IOException
+	 */
+	private boolean readMemberHeader() throws IOException {
+		long start = decoder.getBitPosition();
+		int id1 = decoder.readAlignedByte();
+		int id2 = decoder.readAlignedByte();
+		if (id1 != 0x1f || id2 != 0x8b) {
+			// End of data, trailing garbage is ignored like GZIPInputStream does.
+			return false;
+		}
+		if (readByte() != 8) {
+			throw new ZipException("Unsupported compression method"); //$NON-NLS-1$
+		}
+		int flags = readByte();
+		// Modification time, extra flags and operating system.
+		skipBytes(6);
+		if ((flags & FEXTRA) != 0) {
+			int length = readByte() | (readByte() << 8);
+			skipBytes(length);
+		}
+		if ((flags & FNAME) != 0) {
+			while (readByte() != 0) {
+				// Skip the file name.
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (readByte() != 0) {
+				// Skip the comment.
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			skipBytes(2);
+		}
+		if (index != null && index.isDue(position)) {
+			index.add(new CheckpointIndex.Checkpoint(position, start, null));
+		}
+		decoder.reset();
+		crc.reset();
+		memberSize = 0;
+		verify = true;
+		return true;
+	}
+
+	/**
+	 * Reads and checks the trailer of the current member.
+	 *
+	 * @throws IOException
+	 */
+	private void readMemberTrailer() throws IOException {
+		decoder.alignToByte();
+		long expectedCrc = readInt();
+		long expectedSize = readInt();
+		if (verify && (expectedCrc != crc.getValue()
+				|| expectedSize != (memberSize & 0xffffffffL))) {
+			throw new ZipException("Corrupt GZIP trailer"); //$NON-NLS-1$
+		}
+	}
+
+	private int readByte() throws IOException {
+		int b = decoder.readAlignedByte();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of ZLIB input stream"); //$NON-NLS-1$
+		}
+		return b;
+	}
+
+	private long readInt() throws IOException {
+		return readByte() | (readByte() << 8) | (readByte() << 16)
+				| ((long) readByte() << 24);
+	}
+
+	private void skipBytes(int n) throws IOException {
+		for (int i = 0; i < n; i++) {
+			readByte();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (eof) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (index != null && decoder.atBlockBoundary()
+					&& index.isDue(position)) {
+				index.add(new CheckpointIndex.Checkpoint(position,
+						decoder.getBitPosition(), decoder.getHistory()));
+			}
+			int n = decoder.read(b, off, len);
+			if (n > 0) {
+				if (verify) {
+					crc.update(b, off, n);
+				}
+				position += n;
+				memberSize += n;
+				return n;
+			}
+			readMemberTrailer();
+			if (!readMemberHeader()) {
+				eof = true;
+				return -1;
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() throws IOException {
+		int size = read(single, 0, 1);
+		if (size < 0) {
+			return size;
+		}
+		return single[0] & 0xff;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	public void close() throws IOException {
+		eof = true;
+		in.close();
+	}
+}
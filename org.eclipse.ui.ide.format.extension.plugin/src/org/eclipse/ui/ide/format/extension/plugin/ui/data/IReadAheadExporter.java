@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.IOException;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+
+/**
+ * A file exporter that can also be handed the contents of an entry in
+ * memory: a file read ahead of it on another thread, instead of reading
+ * the file itself, or an entry that does not come from a resource.
+ */
+interface IReadAheadExporter extends IFileExporter {
+
+	/**
+	 * Write the passed resource to the current archive, with the given
+	 * contents.
+	 * 
+	 * @param resource the file, for its name, time stamp and attributes
+	 * @param destinationPath the path that will be used in the archive
+	 * @param contents all of the contents of the file
+	 * @throws IOException
+	 * @throws CoreException
+	 */
+	public void write(IFile resource, String destinationPath, byte[] contents)
+			throws IOException, CoreException;
+
+	/**
+	 * Write an entry that does not come from a resource, such as the list
+	 * of files deleted since an earlier export, to the current archive.
+	 * 
+	 * @param destinationPath the path that will be used in the archive
+	 * @param contents all of the contents of the entry
+	 * @param timeStamp the modification time of the entry, in
+	 *            milliseconds
+	 * @throws IOException
+	 */
+	public void write(String destinationPath, byte[] contents, long timeStamp)
+			throws IOException;
+}
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.airlift.compress.MalformedInputException;
+import io.airlift.compress.lz4.Lz4Decompressor;
+
+import org.apache.commons.compress.compressors.lz4.XXHash32;
+
+/**
+ * Input stream that decompresses LZ4 frames whose blocks are independent,
+ * a whole block at a time, with the LZ4 decompressor of aircompressor.
+ * Concatenated and skippable frames are read as well.  Frames with linked
+ * blocks or a dictionary are rejected; those files are read by the much
+ * slower reader of commons-compress instead.
+ * <p>
+ * Block checksums are checked, and so is the content checksum of each
+ * frame.
+ * </p>
+ */
+class LZ4FrameInputStream extends InputStream {
+	private static final int MAGIC = 0x184d2204;
+	private static final int SKIPPABLE_MAGIC = 0x184d2a50;
+	private static final int SKIPPABLE_MASK = 0xfffffff0;
+
+	private static final int VERSION_MASK = 0xc0;
+	private static final int VERSION = 0x40;
+	private static final int BLOCK_INDEPENDENCE = 0x20;
+	private static final int BLOCK_CHECKSUM = 0x10;
+	private static final int CONTENT_SIZE = 0x08;
+	private static final int CONTENT_CHECKSUM = 0x04;
+	private static final int DICTIONARY_ID = 0x01;
+
+	private static final int UNCOMPRESSED = 0x80000000;
+
+	private final InputStream in;
+	private final Lz4Decompressor decompressor = new Lz4Decompressor();
+	private final XXHash32 contentHash = new XXHash32();
+	private final XXHash32 blockHash = new XXHash32();
+	private final byte[] word = new byte[4];
+
+	// The frame being read.
+	private boolean inFrame = false;
+	private int flags;
+	private byte[] compressed = new byte[0];
+
+	// The decompressed block being read.
+	private byte[] block = new byte[0];
+	private int blockPos = 0;
+	private int blockLen = 0;
+
+	private boolean end = false;
+	private byte[] single = new byte[1];
+
+	/**
+	 * Creates a new stream reading the given stream of LZ4 frames.  Only
+	 * to be used once <code>ArchiveFormat</code> found the frames to be
+	 * independent.
+	 *
+	 * @param in the compressed stream, positioned at a frame
+	 */
+	LZ4FrameInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the next block, moving on to the next frame at the end of a
+	 * frame.
+	 *
+	 * @return false at the end of the data
+	 * @throws IOException
+	 */
+	private boolean nextBlock() throws IOException {
+		while (true) {
+			if (!inFrame && !readFrameHeader()) {
+				return false;
+			}
+			readFully(word, 4, false);
+			int size = getInt(word, 0);
+			if (size == 0) {
+				endFrame();
+				continue;
+			}
+			boolean stored = (size & UNCOMPRESSED) != 0;
+			size &= ~UNCOMPRESSED;
+			if (size > compressed.length) {
+				compressed = new byte[size];
+			}
+			readFully(compressed, size, false);
+			if ((flags & BLOCK_CHECKSUM) != 0) {
+				blockHash.reset();
+				blockHash.update(compressed, 0, size);
+				checkHash(blockHash);
+			}
+			if (stored) {
+				byte[] swap = block;
+				block = compressed;
+				compressed = swap;
+				blockLen = size;
+			} else {
+				try {
+					blockLen = decompressor.decompress(compressed, 0, size, block, 0,
+							block.length);
+				} catch (MalformedInputException e) {
+					throw new IOException("corrupt LZ4 block"); //$NON-NLS-1$
+				}
+			}
+			blockPos = 0;
+			if ((flags & CONTENT_CHECKSUM) != 0) {
+				contentHash.update(block, 0, blockLen);
+			}
+			if (blockLen > 0) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reads the header of the next frame, skipping skippable frames.
+	 *
+	 * @return false at the end of the data
+	 * @throws IOException
+	 */
+	private boolean readFrameHeader() throws IOException {
+		while (true) {
+			if (!readFully(word, 4, true)) {
+				return false;
+			}
+			int magic = getInt(word, 0);
+			if ((magic & SKIPPABLE_MASK) == SKIPPABLE_MAGIC) {
+				readFully(word, 4, false);
+				skipFully(getInt(word, 0) & 0xffffffffL);
+				continue;
+			}
+			if (magic != MAGIC) {
+				throw new IOException("not an LZ4 frame"); //$NON-NLS-1$
+			}
+			break;
+		}
+		byte[] descriptor = new byte[2 + 8 + 4 + 1];
+		readFully(descriptor, 2, false);
+		flags = descriptor[0] & 0xff;
+		if ((flags & VERSION_MASK) != VERSION) {
+			throw new IOException("unsupported LZ4 frame version"); //$NON-NLS-1$
+		}
+		if ((flags & (BLOCK_INDEPENDENCE | DICTIONARY_ID)) != BLOCK_INDEPENDENCE) {
+			throw new IOException("unsupported LZ4 frame with linked blocks"); //$NON-NLS-1$
+		}
+		int length = 2 + ((flags & CONTENT_SIZE) != 0 ? 8 : 0);
+		// The content size, if any, and the header checksum.
+		readFully(descriptor, 2, length - 2 + 1, false);
+		XXHash32 hash = new XXHash32();
+		hash.update(descriptor, 0, length);
+		if ((byte) (hash.getValue() >> 8) != descriptor[length]) {
+			throw new IOException("corrupt LZ4 frame header"); //$NON-NLS-1$
+		}
+		int sizeCode = (descriptor[1] >> 4) & 7;
+		if (sizeCode < 4) {
+			throw new IOException("unsupported LZ4 block size"); //$NON-NLS-1$
+		}
+		int maxSize = 1 << (8 + 2 * sizeCode);
+		if (block.length < maxSize) {
+			block = new byte[maxSize];
+		}
+		if (compressed.length < maxSize) {
+			compressed = new byte[maxSize];
+		}
+		contentHash.reset();
+		inFrame = true;
+		return true;
+	}
+
+	private void endFrame() throws IOException {
+		if ((flags & CONTENT_CHECKSUM) != 0) {
+			checkHash(contentHash);
+		}
+		inFrame = false;
+	}
+
+	private void checkHash(XXHash32 hash) throws IOException {
+		readFully(word, 4, false);
+		if (getInt(word, 0) != (int) hash.getValue()) {
+			throw new IOException("LZ4 checksum mismatch"); //$NON-NLS-1$
+		}
+	}
+
+	private boolean readFully(byte[] b, int len, boolean eofAllowed)
+			throws IOException {
+		return readFully(b, 0, len, eofAllowed);
+	}
+
+	private boolean readFully(byte[] b, int off, int len, boolean eofAllowed)
+			throws IOException {
+		int count = 0;
+		while (count < len) {
+			int n = in.read(b, off + count, len - count);
+			if (n < 0) {
+				if (count == 0 && eofAllowed) {
+					return false;
+				}
+				throw new EOFException();
+			}
+			count += n;
+		}
+		return true;
+	}
+
+	private void skipFully(long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	private static int getInt(byte[] b, int pos) {
+		return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8
+				| (b[pos + 2] & 0xff) << 16 | (b[pos + 3] & 0xff) << 24;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (blockPos >= blockLen) {
+			if (end || !nextBlock()) {
+				end = true;
+				return -1;
+			}
+		}
+		int size = Math.min(len, blockLen - blockPos);
+		System.arraycopy(block, blockPos, b, off, size);
+		blockPos += size;
+		return size;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() throws IOException {
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#available()
+	 */
+	public int available() {
+		return blockLen - blockPos;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads an uncompressed .tar archive file mapped into memory.  Listing the
+ * archive only touches the pages holding headers, and entry contents are
+ * returned as views of the mapped file, either as an
+ * <code>InputStream</code> or as a <code>ByteBuffer</code>, without
+ * copying them into heap arrays or issuing read calls.
+ * <p>
+ * The file is mapped in chunks of at most 1 GiB, so archives larger than
+ * the address space of the virtual machine cannot be opened this way; use
+ * {@link TarFile} for those, and for compressed archives.
+ * </p>
+ * <p>
+ * Closing the file does not unmap it: the pages stay mapped until the
+ * buffers are garbage collected, and on Windows the archive cannot be
+ * deleted or replaced until then.  Use it where the archive is read many
+ * times and kept, not for a one-off import.
+ * </p>
+ *
+ * @since 3.4
+ */
+public class MappedTarFile extends TarFile {
+	private static final long CHUNK_SIZE = 1L << 30;
+
+	private Mapping mapping;
+
+	/**
+	 * Create a new MappedTarFile for the given file.
+	 *
+	 * @param file
+	 * @throws TarException if the file is not an uncompressed tar archive
+	 * @throws IOException if the file cannot be read or mapped
+	 */
+	public MappedTarFile(File file) throws TarException, IOException {
+		this(file, new Mapping(file));
+	}
+
+	/**
+	 * Create a new MappedTarFile for the given path name.
+	 *
+	 * @param filename
+	 * @throws TarException if the file is not an uncompressed tar archive
+	 * @throws IOException if the file cannot be read or mapped
+	 */
+	public MappedTarFile(String filename) throws TarException, IOException {
+		this(new File(filename));
+	}
+
+	private MappedTarFile(File file, Mapping mapping) throws TarException, IOException {
+		// Headers are read one block at a time; the data in between is
+		// skipped over without being touched.
+		super(file, new TarInputStream(mapping.getInputStream(0, mapping.length), 512));
+		this.mapping = mapping;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.TarFile#getInputStream(org.eclipse.ui.ide.format.extension.plugin.ui.data.TarEntry)
+	 */
+	public InputStream getInputStream(TarEntry entry) throws TarException, IOException {
+		if (entry.datapos < 0) {
+			return super.getInputStream(entry);
+		}
+		return getMapping().getInputStream(entry.datapos, entry.getSize());
+	}
+
+	/**
+	 * Returns a read-only buffer holding the contents of the given entry.
+	 * The buffer is a view of the mapped archive; it stays valid after this
+	 * file is closed.
+	 *
+	 * @param entry an entry of this archive
+	 * @return the contents of the entry
+	 * @throws IOException if the entry is larger than 2 GiB, or cannot be
+	 *             mapped
+	 */
+	public ByteBuffer getByteBuffer(TarEntry entry) throws IOException {
+		if (entry.datapos < 0) {
+			throw new IOException("entry is not part of this archive"); //$NON-NLS-1$
+		}
+		return getMapping().getByteBuffer(entry.datapos, entry.getSize());
+	}
+
+	private Mapping getMapping() throws IOException {
+		Mapping current = mapping;
+		if (current == null) {
+			throw new IOException("archive is closed"); //$NON-NLS-1$
+		}
+		return current;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.TarFile#close()
+	 */
+	public void close() throws IOException {
+		super.close();
+		// The pages are unmapped once the buffers are garbage collected.
+		mapping = null;
+	}
+
+	/**
+	 * The archive file, mapped in consecutive chunks.
+	 */
+	private static class Mapping {
+		final File file;
+		final long length;
+		final ByteBuffer[] chunks;
+
+		Mapping(File file) throws IOException {
+			this.file = file;
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+			try {
+				FileChannel channel = randomAccessFile.getChannel();
+				length = channel.size();
+				chunks = new ByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+				for (int i = 0; i < chunks.length; i++) {
+					long start = i * CHUNK_SIZE;
+					chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+							Math.min(CHUNK_SIZE, length - start));
+				}
+			} finally {
+				// Mappings remain valid after the channel is closed.
+				randomAccessFile.close();
+			}
+		}
+
+		InputStream getInputStream(long position, long size) {
+			return new MappedInputStream(this, position, size);
+		}
+
+		ByteBuffer getByteBuffer(long position, long size) throws IOException {
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("entry too large to map"); //$NON-NLS-1$
+			}
+			int chunk = (int) (position / CHUNK_SIZE);
+			int offset = (int) (position % CHUNK_SIZE);
+			if (size == 0 || offset + size <= chunks[chunk].capacity()) {
+				ByteBuffer view = chunks[chunk].duplicate();
+				view.limit(offset + (int) size);
+				view.position(offset);
+				return view.slice().asReadOnlyBuffer();
+			}
+			// The entry straddles two chunks and gets a mapping of its own.
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+			try {
+				return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+						position, size);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Input stream over a region of the mapped archive.  Each stream works
+	 * on its own view of the chunks, so several can be read at once.
+	 */
+	private static class MappedInputStream extends InputStream {
+		private final Mapping mapping;
+		private long position;
+		private long remaining;
+		private ByteBuffer view;
+		private int viewChunk = -1;
+
+		MappedInputStream(Mapping mapping, long position, long size) {
+			this.mapping = mapping;
+			this.position = position;
+			this.remaining = size;
+		}
+
+		/**
+		 * Returns a view of the chunk holding the current position,
+		 * positioned there.
+		 */
+		private ByteBuffer view() throws IOException {
+			int chunk = (int) (position / CHUNK_SIZE);
+			if (chunk >= mapping.chunks.length) {
+				throw new IOException("early end of stream"); //$NON-NLS-1$
+			}
+			if (chunk != viewChunk) {
+				view = mapping.chunks[chunk].duplicate();
+				viewChunk = chunk;
+			}
+			view.position((int) (position % CHUNK_SIZE));
+			return view;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			ByteBuffer buffer = view();
+			int size = (int) Math.min(Math.min(len, remaining), buffer.remaining());
+			buffer.get(b, off, size);
+			position += size;
+			remaining -= size;
+			return size;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read()
+		 */
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = view().get() & 0xff;
+			position++;
+			remaining--;
+			return b;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#skip(long)
+		 */
+		public long skip(long n) throws IOException {
+			if (n <= 0) {
+				return 0;
+			}
+			if (n > remaining) {
+				n = remaining;
+			}
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#available()
+		 */
+		public int available() throws IOException {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#close()
+		 */
+		public void close() {
+			remaining = 0;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+
+/**
+ * Opens the decompressing streams of the optional aircompressor library.
+ * Kept apart from {@link ArchiveFormat}, which must load without the
+ * library; like the writers of {@link ParallelLZ4OutputStream} and
+ * {@link ParallelZstdOutputStream}, this class may only be used once
+ * {@link ArchiveFormat#isSupported(int)} found the library.
+ */
+class OptionalCodecs {
+	private OptionalCodecs() {
+	}
+
+	/**
+	 * Opens a Zstandard decompressing stream.
+	 *
+	 * @param in the compressed stream
+	 * @return the decompressed stream
+	 * @throws IOException
+	 */
+	static InputStream openZstd(InputStream in) throws IOException {
+		return new ZstdInputStream(new BufferedInputStream(in));
+	}
+
+	/**
+	 * Opens an LZ4 decompressing stream for frames with independent blocks.
+	 *
+	 * @param in the compressed stream
+	 * @return the decompressed stream
+	 * @see LZ4FrameInputStream
+	 */
+	static InputStream openLZ4(InputStream in) {
+		return new LZ4FrameInputStream(new BufferedInputStream(in));
+	}
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+/**
+ * Output stream that writes a bzip2 file, compressing blocks of the input
+ * on the {@link WorkerPool} in the manner of pbzip2.  Each block of
+ * {@link #BLOCK_SIZE} bytes is compressed into a bzip2 stream of its own;
+ * bunzip2 and {@link BZip2BlockInputStream} read such concatenated streams
+ * as one.
+ */
+class ParallelBZip2OutputStream extends ParallelBlockOutputStream {
+	/**
+	 * The size of the blocks compressed on their own.  Slightly less than
+	 * the 900k block of <code>bzip2 -9</code>, so that each block of data
+	 * without long runs fits a single compressed block.
+	 */
+	static final int BLOCK_SIZE = 900000 - 1000;
+
+	/**
+	 * Creates a new stream writing to the given stream.
+	 *
+	 * @param out the stream to write the bzip2 file to
+	 */
+	ParallelBZip2OutputStream(OutputStream out) {
+		super(out, BLOCK_SIZE, true);
+	}
+
+	/**
+	 * Returns whether compressing in parallel is worth it, which is when
+	 * there is more than one processor.
+	 *
+	 * @return true if this stream should be used
+	 */
+	static boolean isSupported() {
+		return WorkerPool.isParallel();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.ParallelBlockOutputStream#compress(byte[], int)
+	 */
+	protected ByteArrayOutputStream compress(byte[] input, int length)
+			throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(length / 4 + 64);
+		BZip2CompressorOutputStream bzip2 = new BZip2CompressorOutputStream(result,
+				BZip2CompressorOutputStream.MAX_BLOCKSIZE);
+		bzip2.write(input, 0, length);
+		bzip2.close();
+		return result;
+	}
+}
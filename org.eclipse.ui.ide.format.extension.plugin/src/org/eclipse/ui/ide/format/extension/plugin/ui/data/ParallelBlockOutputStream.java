@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Output stream that compresses fixed-size blocks of the input into
+ * compressed streams of their own, in the manner of pbzip2, and writes the
+ * streams out in order, one after the other.  For formats whose readers
+ * take such concatenated streams as one, such as bzip2 and xz.
+ * <p>
+ * In parallel mode the blocks are compressed on the {@link WorkerPool},
+ * with at most two blocks per thread in flight at any time; otherwise each
+ * block is compressed by the writing thread as soon as it is full.
+ * </p>
+ */
+abstract class ParallelBlockOutputStream extends OutputStream {
+	private final OutputStream out;
+	private final int blockSize;
+	private final boolean parallel;
+	private final int maxPending;
+	@SuppressWarnings("rawtypes")
+	private final LinkedList pending = new LinkedList();
+
+	private byte[] block;
+	private int blockLength = 0;
+	private boolean submitted = false;
+	private boolean finished = false;
+	private byte[] single = new byte[1];
+
+	/**
+	 * Creates a new stream writing to the given stream.
+	 *
+	 * @param out the stream to write the compressed streams to
+	 * @param blockSize the size of the blocks compressed on their own
+	 * @param parallel whether to compress the blocks on the pool
+	 */
+	ParallelBlockOutputStream(OutputStream out, int blockSize, boolean parallel) {
+		this.out = out;
+		this.blockSize = blockSize;
+		this.parallel = parallel;
+		this.maxPending = 2 * WorkerPool.getThreads();
+		this.block = new byte[blockSize];
+	}
+
+	/**
+	 * Compresses one block into a complete compressed stream.  Called on
+	 * the threads of the pool in parallel mode, so it must not touch any
+	 * state of this stream.
+	 *
+	 * @param input the block
+	 * @param length the length of the block
+	 * @return the compressed stream
+	 * @throws IOException
+	 */
+	protected abstract ByteArrayOutputStream compress(byte[] input, int length)
+			throws IOException;
+
+	/**
+	 * Compresses the current block, or hands it to the pool and writes out
+	 * finished blocks while too many are in flight.
+	 *
+	 * @param last whether this is the last block
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void submitBlock(boolean last) throws IOException {
+		final byte[] input = block;
+		final int length = blockLength;
+		submitted = true;
+		blockLength = 0;
+		if (!parallel) {
+			compress(input, length).writeTo(out);
+			return;
+		}
+		pending.add(WorkerPool.getExecutor().submit(new Callable() {
+			public Object call() throws IOException {
+				return compress(input, length);
+			}
+		}));
+		block = last ? null : new byte[blockSize];
+		while (pending.size() > maxPending) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Waits for the oldest block in flight and writes it out.
+	 *
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	private void writeBlock() throws IOException {
+		ByteArrayOutputStream compressed;
+		try {
+			compressed = (ByteArrayOutputStream) ((Future) pending.removeFirst()).get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().toString());
+		}
+		compressed.writeTo(out);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished) {
+			throw new IOException("write beyond end of stream"); //$NON-NLS-1$
+		}
+		while (len > 0) {
+			int size = Math.min(len, block.length - blockLength);
+			System.arraycopy(b, off, block, blockLength, size);
+			blockLength += size;
+			off += size;
+			len -= size;
+			if (blockLength == block.length) {
+				submitBlock(false);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(int)
+	 */
+	public void write(int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+
+	/**
+	 * Compresses the rest of the data and writes out all blocks, without
+	 * closing the underlying stream.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		try {
+			// An empty file still needs one stream.
+			if (blockLength > 0 || !submitted) {
+				submitBlock(true);
+			}
+			while (!pending.isEmpty()) {
+				writeBlock();
+			}
+		} finally {
+			cancel();
+		}
+	}
+
+	/**
+	 * Gives up on the blocks still in flight.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void cancel() {
+		for (Iterator i = pending.iterator(); i.hasNext();) {
+			((Future) i.next()).cancel(false);
+		}
+		pending.clear();
+		block = null;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#close()
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,428 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that writes raw deflate data, compressing blocks of the
+ * input on the {@link WorkerPool} in the manner of pigz.  The input is cut
+ * into blocks of {@link #BLOCK_SIZE} bytes; each block is deflated with
+ * the last 32 KiB of the block before it as dictionary and ends with a
+ * sync flush, so the compressed blocks join into a single deflate stream.
+ * They are written out in order, and at most two blocks per thread are in
+ * flight at any time.
+ * <p>
+ * The sync flush is only available on Java 7 and later, see
+ * {@link #isSupported()}.
+ * </p>
+ */
+class ParallelDeflateOutputStream extends OutputStream {
+	/**
+	 * The size of the blocks compressed on their own.
+	 */
+	static final int BLOCK_SIZE = 128 * 1024;
+
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	// Deflater.SYNC_FLUSH
+	private static final int SYNC_FLUSH = 2;
+
+	private static final Method DEFLATE_WITH_FLUSH = getDeflateWithFlush();
+
+	/**
+	 * Output stream the compressed data is written to.
+	 */
+	protected final OutputStream out;
+
+	private int level;
+	private final int maxPending;
+	@SuppressWarnings("rawtypes")
+	private final LinkedList pending = new LinkedList();
+
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockLength = 0;
+	private byte[] previous;
+	private int previousLength = 0;
+
+	private long crc = 0;
+	private long bytesRead = 0;
+	private long bytesWritten = 0;
+	private boolean finished = false;
+	private byte[] single = new byte[1];
+
+	/**
+	 * A block compressed on the pool.
+	 */
+	private static class Block {
+		final byte[] data;
+		final int length;
+		final long crc;
+		final int inputLength;
+
+		Block(byte[] data, int length, long crc, int inputLength) {
+			this.data = data;
+			this.length = length;
+			this.crc = crc;
+			this.inputLength = inputLength;
+		}
+	}
+
+	/**
+	 * Creates a new stream writing to the given stream.
+	 *
+	 * @param out the stream to write the deflate data to
+	 * @param level the compression level
+	 */
+	ParallelDeflateOutputStream(OutputStream out, int level) {
+		this(out, level, WorkerPool.getThreads());
+	}
+
+	/**
+	 * Creates a new stream writing to the given stream, compressing about
+	 * as many blocks at once as given.
+	 *
+	 * @param out the stream to write the deflate data to
+	 * @param level the compression level
+	 * @param threads the number of threads to keep busy, at most the
+	 *            number of threads of the pool
+	 */
+	ParallelDeflateOutputStream(OutputStream out, int level, int threads) {
+		this.out = out;
+		this.level = level;
+		this.maxPending = 2 * Math.max(1, Math.min(threads, WorkerPool.getThreads()));
+	}
+
+	/**
+	 * Sets the compression level of the data written from now on.  The
+	 * data buffered so far is handed to the pool at the old level first.
+	 *
+	 * @param level the compression level
+	 * @throws IOException
+	 */
+	void setLevel(int level) throws IOException {
+		if (level == this.level) {
+			return;
+		}
+		if (blockLength > 0) {
+			submitBlock(false);
+		}
+		this.level = level;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Method getDeflateWithFlush() {
+		try {
+			return Deflater.class.getMethod("deflate", new Class[] { //$NON-NLS-1$
+					byte[].class, int.class, int.class, int.class });
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether compressing in parallel is possible and worth it:
+	 * the runtime must support sync flushes, and there must be more than
+	 * one processor.
+	 *
+	 * @return true if this stream can be used
+	 */
+	static boolean isSupported() {
+		return DEFLATE_WITH_FLUSH != null && WorkerPool.isParallel();
+	}
+
+	/**
+	 * Combines the CRC-32 of two pieces of data into the CRC-32 of their
+	 * concatenation, as zlib's crc32_combine does.
+	 *
+	 * @param crc1 the CRC-32 of the first piece
+	 * @param crc2 the CRC-32 of the second piece
+	 * @param length2 the length of the second piece
+	 * @return the CRC-32 of both pieces
+	 */
+	static long combineCrc(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+		// The operator for one zero bit, then for two and four.
+		long[] odd = new long[32];
+		long[] even = new long[32];
+		odd[0] = 0xedb88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);
+		square(odd, even);
+		// Apply the operators for the bits of the length in bytes.
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = times(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+			square(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = times(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+
+	/**
+	 * Deflates one block.
+	 *
+	 * @param level the compression level
+	 * @param dictionary the block before, or <code>null</code> for the
+	 *            first block
+	 * @param dictionaryLength the length of the block before
+	 * @param input the block
+	 * @param length the length of the block
+	 * @param last whether to end the deflate stream with this block
+	 * @return the compressed block
+	 * @throws IOException
+	 */
+	private static Block deflate(int level, byte[] dictionary, int dictionaryLength,
+			byte[] input, int length, boolean last) throws IOException {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionary != null) {
+				int size = Math.min(dictionaryLength, DICTIONARY_SIZE);
+				deflater.setDictionary(dictionary, dictionaryLength - size, size);
+			}
+			deflater.setInput(input, 0, length);
+			if (last) {
+				deflater.finish();
+			}
+			byte[] data = new byte[length + (length >> 8) + 64];
+			int count = 0;
+			while (true) {
+				if (count == data.length) {
+					byte[] larger = new byte[data.length * 2];
+					System.arraycopy(data, 0, larger, 0, count);
+					data = larger;
+				}
+				int space = data.length - count;
+				int n;
+				if (last) {
+					n = deflater.deflate(data, count, space);
+				} else {
+					n = syncFlush(deflater, data, count, space);
+				}
+				count += n;
+				if (last ? deflater.finished() : n < space) {
+					break;
+				}
+			}
+			CRC32 crc = new CRC32();
+			crc.update(input, 0, length);
+			return new Block(data, count, crc.getValue(), length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static int syncFlush(Deflater deflater, byte[] b, int off, int len)
+			throws IOException {
+		try {
+			return ((Integer) DEFLATE_WITH_FLUSH.invoke(deflater, new Object[] { b,
+					Integer.valueOf(off), Integer.valueOf(len), Integer.valueOf(SYNC_FLUSH) }))
+					.intValue();
+		} catch (IllegalAccessException e) {
+			throw new IOException(e.toString());
+		} catch (InvocationTargetException e) {
+			throw new IOException(e.getCause().toString());
+		}
+	}
+
+	/**
+	 * Hands the current block to the pool, writing out finished blocks
+	 * while too many are in flight.
+	 *
+	 * @param last whether this is the last block
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void submitBlock(final boolean last) throws IOException {
+		final int blockLevel = level;
+		final byte[] dictionary = previous;
+		final int dictionaryLength = previousLength;
+		final byte[] input = block;
+		final int length = blockLength;
+		pending.add(WorkerPool.getExecutor().submit(new Callable() {
+			public Object call() throws IOException {
+				return deflate(blockLevel, dictionary, dictionaryLength, input, length, last);
+			}
+		}));
+		// The block stays untouched as the dictionary of the next one.
+		previous = input;
+		previousLength = length;
+		block = new byte[BLOCK_SIZE];
+		blockLength = 0;
+		while (pending.size() > maxPending) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Waits for the oldest block in flight and writes it out.
+	 *
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	private void writeBlock() throws IOException {
+		Block compressed;
+		try {
+			compressed = (Block) ((Future) pending.removeFirst()).get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().toString());
+		}
+		out.write(compressed.data, 0, compressed.length);
+		crc = combineCrc(crc, compressed.crc, compressed.inputLength);
+		bytesWritten += compressed.length;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished) {
+			throw new IOException("write beyond end of stream"); //$NON-NLS-1$
+		}
+		bytesRead += len;
+		while (len > 0) {
+			int size = Math.min(len, block.length - blockLength);
+			System.arraycopy(b, off, block, blockLength, size);
+			blockLength += size;
+			off += size;
+			len -= size;
+			if (blockLength == block.length) {
+				submitBlock(false);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(int)
+	 */
+	public void write(int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+
+	/**
+	 * Compresses the rest of the data and writes out all blocks, ending the
+	 * deflate stream, without closing the underlying stream.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		try {
+			submitBlock(true);
+			while (!pending.isEmpty()) {
+				writeBlock();
+			}
+		} finally {
+			cancel();
+		}
+	}
+
+	/**
+	 * Gives up on the blocks still in flight.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void cancel() {
+		for (Iterator i = pending.iterator(); i.hasNext();) {
+			((Future) i.next()).cancel(false);
+		}
+		pending.clear();
+		block = previous = null;
+	}
+
+	/**
+	 * Returns the CRC-32 of the data written out so far.
+	 *
+	 * @return the CRC-32, complete once the stream is finished
+	 */
+	long getCrc() {
+		return crc;
+	}
+
+	/**
+	 * Returns the number of bytes written to this stream.
+	 *
+	 * @return the uncompressed size
+	 */
+	long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Returns the number of compressed bytes written out so far.
+	 *
+	 * @return the compressed size, complete once the stream is finished
+	 */
+	long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#close()
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that writes a gzip file, compressing blocks of the data in
+ * parallel.  The result is a single gzip member, like the one written by
+ * <code>GZIPOutputStream</code>, and can be read by any gzip reader.
+ *
+ * @see ParallelDeflateOutputStream
+ */
+class ParallelGZIPOutputStream extends ParallelDeflateOutputStream {
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED,
+			0, 0, 0, 0, 0, 0, 0 };
+
+	private boolean trailerWritten = false;
+
+	/**
+	 * Creates a new stream writing to the given stream with the default
+	 * compression level.
+	 *
+	 * @param out the stream to write the gzip file to
+	 * @throws IOException
+	 */
+	ParallelGZIPOutputStream(OutputStream out) throws IOException {
+		super(out, Deflater.DEFAULT_COMPRESSION);
+		out.write(HEADER);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.ParallelDeflateOutputStream#finish()
+	 */
+	public void finish() throws IOException {
+		if (trailerWritten) {
+			return;
+		}
+		trailerWritten = true;
+		super.finish();
+		byte[] trailer = new byte[8];
+		putInt(trailer, 0, getCrc());
+		putInt(trailer, 4, getBytesRead());
+		out.write(trailer);
+	}
+
+	private static void putInt(byte[] b, int pos, long value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >> 8);
+		b[pos + 2] = (byte) (value >> 16);
+		b[pos + 3] = (byte) (value >> 24);
+	}
+}
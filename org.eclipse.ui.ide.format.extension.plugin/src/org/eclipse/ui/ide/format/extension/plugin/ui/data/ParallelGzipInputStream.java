@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Input stream for blocked gzip files, such as BGZF files written by
+ * bgzip, that inflates the gzip members on the {@link WorkerPool}.  Each
+ * member of a blocked gzip file records its compressed size in a 'BC'
+ * extra field, so the members ahead of the reader can be located from
+ * their headers alone and inflated concurrently; the output is handed out
+ * in file order.  Members are small and self-contained, so every member
+ * start is a checkpoint that needs no history.
+ * <p>
+ * Should a member without the size field turn up, the rest of the file is
+ * read with a {@link GzipCheckpointInputStream}.
+ * </p>
+ */
+class ParallelGzipInputStream extends InputStream {
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	/**
+	 * Enough of a member to hold any header worth parsing.
+	 */
+	private static final int HEADER_PEEK = 1024;
+
+	/**
+	 * The largest uncompressed size accepted for a member; the format
+	 * limits members to 64 KiB.
+	 */
+	private static final int MAX_MEMBER_SIZE = 1 << 20;
+
+	private final File file;
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+	private CheckpointIndex index;
+	private long position;
+
+	// File offset of the next member to locate, or -1 at the end.
+	private long nextMember;
+	@SuppressWarnings("rawtypes")
+	private LinkedList pending = new LinkedList();
+	private int maxPending;
+
+	private byte[] current;
+	private int currentPos = 0;
+	private InputStream rest;
+	private byte[] single = new byte[1];
+
+	/**
+	 * A member located in the file.
+	 */
+	private static class Member {
+		final long offset;
+		final byte[] data;
+		@SuppressWarnings("rawtypes")
+		Future inflated;
+
+		Member(long offset, byte[] data) {
+			this.offset = offset;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Opens the given blocked gzip file from the start, recording member
+	 * starts as checkpoints in <code>index</code>.
+	 *
+	 * @param file the gzip file
+	 * @param index the index to record checkpoints in, may be
+	 *            <code>null</code>
+	 * @throws IOException
+	 */
+	ParallelGzipInputStream(File file, CheckpointIndex index) throws IOException {
+		this(file, index, 0, 0);
+	}
+
+	/**
+	 * Opens the given blocked gzip file at a member start recorded earlier.
+	 *
+	 * @param file the gzip file
+	 * @param checkpoint the checkpoint to resume from, which must not need
+	 *            any history
+	 * @param index the index to go on recording checkpoints in, may be
+	 *            <code>null</code>
+	 * @throws IOException
+	 */
+	ParallelGzipInputStream(File file, CheckpointIndex.Checkpoint checkpoint,
+			CheckpointIndex index) throws IOException {
+		this(file, index, checkpoint.in >>> 3, checkpoint.out);
+	}
+
+	private ParallelGzipInputStream(File file, CheckpointIndex index, long offset,
+			long position) throws IOException {
+		this.file = file;
+		this.index = index;
+		this.nextMember = offset;
+		this.position = position;
+		this.randomAccessFile = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+		this.channel = randomAccessFile.getChannel();
+		this.maxPending = 2 * WorkerPool.getThreads();
+	}
+
+	/**
+	 * Returns the compressed size of the member starting with the given
+	 * bytes, as recorded in its 'BC' extra subfield.
+	 *
+	 * @param header the start of the member
+	 * @param count the number of valid bytes in <code>header</code>
+	 * @return the size of the member, or -1 if it does not record its size
+	 */
+	static int getMemberSize(byte[] header, int count) {
+		if (count < 12 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b
+				|| header[2] != 8 || (header[3] & FEXTRA) == 0) {
+			return -1;
+		}
+		int extraLength = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+		int pos = 12;
+		int end = Math.min(12 + extraLength, count);
+		while (pos + 4 <= end) {
+			int length = (header[pos + 2] & 0xff) | ((header[pos + 3] & 0xff) << 8);
+			if (header[pos] == 'B' && header[pos + 1] == 'C' && length == 2 && pos + 6 <= end) {
+				return ((header[pos + 4] & 0xff) | ((header[pos + 5] & 0xff) << 8)) + 1;
+			}
+			pos += 4 + length;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the length of the header of the given member.
+	 */
+	private static int getHeaderLength(byte[] data) throws ZipException {
+		int flags = data[3];
+		int pos = 10;
+		if ((flags & FEXTRA) != 0) {
+			pos += 2 + ((data[10] & 0xff) | ((data[11] & 0xff) << 8));
+		}
+		if ((flags & FNAME) != 0) {
+			while (pos < data.length && data[pos++] != 0) {
+				// Skip the file name.
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (pos < data.length && data[pos++] != 0) {
+				// Skip the comment.
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			pos += 2;
+		}
+		if (pos + 8 > data.length) {
+			throw new ZipException("Corrupt GZIP header"); //$NON-NLS-1$
+		}
+		return pos;
+	}
+
+	private static long getInt(byte[] data, int pos) {
+		return (data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8)
+				| ((data[pos + 2] & 0xff) << 16) | ((long) (data[pos + 3] & 0xff) << 24);
+	}
+
+	/**
+	 * Inflates a whole member and checks it against its trailer.
+	 */
+	private static byte[] inflate(byte[] data) throws IOException {
+		int headerLength = getHeaderLength(data);
+		long expectedCrc = getInt(data, data.length - 8);
+		long size = getInt(data, data.length - 4);
+		if (size > MAX_MEMBER_SIZE) {
+			throw new ZipException("Corrupt GZIP trailer"); //$NON-NLS-1$
+		}
+		byte[] out = new byte[(int) size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data, headerLength, data.length - 8 - headerLength);
+			int count = 0;
+			byte[] extra = new byte[1];
+			while (!inflater.finished() && count <= out.length) {
+				int n;
+				if (count < out.length) {
+					n = inflater.inflate(out, count, out.length - count);
+				} else {
+					// Only the end of the stream may be left.
+					n = inflater.inflate(extra);
+				}
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				count += n;
+			}
+			if (count != out.length || !inflater.finished()) {
+				throw new ZipException("Corrupt GZIP trailer"); //$NON-NLS-1$
+			}
+			CRC32 crc = new CRC32();
+			crc.update(out);
+			if (crc.getValue() != expectedCrc) {
+				throw new ZipException("Corrupt GZIP trailer"); //$NON-NLS-1$
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return out;
+	}
+
+	/**
+	 * Reads bytes of the file at the given offset.
+	 *
+	 * @return the number of bytes read, short only at the end of the file
+	 */
+	private int readAt(long offset, byte[] b, int len) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(b, 0, len);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				break;
+			}
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * Locates the next member and reads it in.
+	 *
+	 * @return the member, whose data is <code>null</code> if it does not
+	 *         record its size, or <code>null</code> at the end of the data
+	 * @throws IOException
+	 */
+	private Member scanMember() throws IOException {
+		if (nextMember < 0) {
+			return null;
+		}
+		byte[] header = new byte[HEADER_PEEK];
+		int count = readAt(nextMember, header, header.length);
+		if (count < 2 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b) {
+			// End of data, trailing garbage is ignored like GZIPInputStream does.
+			nextMember = -1;
+			return null;
+		}
+		long offset = nextMember;
+		int size = getMemberSize(header, count);
+		if (size < 0) {
+			// The rest of the file is read sequentially.
+			nextMember = -1;
+			return new Member(offset, null);
+		}
+		byte[] data = new byte[size];
+		if (readAt(offset, data, size) < size) {
+			throw new ZipException("Unexpected end of ZLIB input stream"); //$NON-NLS-1$
+		}
+		nextMember = offset + size;
+		return new Member(offset, data);
+	}
+
+	/**
+	 * Moves on to the next member.
+	 *
+	 * @return false at the end of the data
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private boolean openNextMember() throws IOException {
+		while (pending.size() < maxPending) {
+			final Member member = scanMember();
+			if (member == null) {
+				break;
+			}
+			if (member.data != null) {
+				member.inflated = WorkerPool.getExecutor().submit(new Callable() {
+					public Object call() throws IOException {
+						return inflate(member.data);
+					}
+				});
+			}
+			pending.add(member);
+		}
+		if (pending.isEmpty()) {
+			return false;
+		}
+		Member member = (Member) pending.removeFirst();
+		if (member.data == null) {
+			rest = new GzipCheckpointInputStream(file,
+					new CheckpointIndex.Checkpoint(position, member.offset * 8, null), index);
+			return true;
+		}
+		if (index != null && index.isDue(position)) {
+			index.add(new CheckpointIndex.Checkpoint(position, member.offset * 8, null));
+		}
+		try {
+			current = (byte[]) member.inflated.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().toString());
+		}
+		currentPos = 0;
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (rest != null) {
+				int n = rest.read(b, off, len);
+				if (n > 0) {
+					position += n;
+				}
+				return n;
+			}
+			if (current != null && currentPos < current.length) {
+				int n = Math.min(len, current.length - currentPos);
+				System.arraycopy(current, currentPos, b, off, n);
+				currentPos += n;
+				position += n;
+				return n;
+			}
+			if (!openNextMember()) {
+				return -1;
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() throws IOException {
+		int size = read(single, 0, 1);
+		if (size < 0) {
+			return size;
+		}
+		return single[0] & 0xff;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	@SuppressWarnings("rawtypes")
+	public void close() throws IOException {
+		nextMember = -1;
+		current = null;
+		for (Iterator i = pending.iterator(); i.hasNext();) {
+			Member member = (Member) i.next();
+			if (member.inflated != null) {
+				member.inflated.cancel(false);
+			}
+		}
+		pending.clear();
+		if (rest != null) {
+			rest.close();
+		}
+		randomAccessFile.close();
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import io.airlift.compress.lz4.Lz4Compressor;
+
+import org.apache.commons.compress.compressors.lz4.XXHash32;
+
+/**
+ * Output stream that writes an LZ4 frame file, made of one frame per
+ * block of {@link #BLOCK_SIZE} bytes.  The frames are independent, so the
+ * blocks can be compressed in parallel; lz4 and
+ * <code>FramedLZ4CompressorInputStream</code> read concatenated frames as
+ * one.  Each frame records its content size and checksum.
+ * <p>
+ * The blocks are compressed with the LZ4 compressor of aircompressor,
+ * which is an optional dependency, see {@link ArchiveFormat}.
+ * </p>
+ */
+class ParallelLZ4OutputStream extends ParallelBlockOutputStream {
+	/**
+	 * The size of the blocks compressed on their own, the largest block
+	 * size of the frame format.
+	 */
+	static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+	private static final int MAGIC = 0x184d2204;
+
+	// Version 01, independent blocks, content size and content checksum.
+	private static final int FLAGS = 0x40 | 0x20 | 0x08 | 0x04;
+
+	// Block maximum size of 4 MiB.
+	private static final int BLOCK_DESCRIPTOR = 7 << 4;
+
+	// Set in the size of a block that is stored uncompressed.
+	private static final int UNCOMPRESSED = 0x80000000;
+
+	/**
+	 * Creates a new stream writing to the given stream.
+	 *
+	 * @param out the stream to write the LZ4 file to
+	 * @param parallel whether to compress the blocks on the pool
+	 */
+	ParallelLZ4OutputStream(OutputStream out, boolean parallel) {
+		super(out, BLOCK_SIZE, parallel);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.ParallelBlockOutputStream#compress(byte[], int)
+	 */
+	protected ByteArrayOutputStream compress(byte[] input, int length)
+			throws IOException {
+		Lz4Compressor compressor = new Lz4Compressor();
+		byte[] block = new byte[compressor.maxCompressedLength(length)];
+		int size = compressor.compress(input, 0, length, block, 0, block.length);
+
+		byte[] header = new byte[15];
+		putInt(header, 0, MAGIC);
+		header[4] = (byte) FLAGS;
+		header[5] = (byte) BLOCK_DESCRIPTOR;
+		putInt(header, 6, length);
+		putInt(header, 10, 0);
+		XXHash32 hash = new XXHash32();
+		hash.update(header, 4, 10);
+		header[14] = (byte) (hash.getValue() >> 8);
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream(
+				header.length + 12 + Math.min(size, length));
+		result.write(header);
+		byte[] word = new byte[4];
+		if (length > 0) {
+			if (size < length) {
+				putInt(word, 0, size);
+				result.write(word);
+				result.write(block, 0, size);
+			} else {
+				putInt(word, 0, length | UNCOMPRESSED);
+				result.write(word);
+				result.write(input, 0, length);
+			}
+		}
+		// End mark, then the content checksum.
+		putInt(word, 0, 0);
+		result.write(word);
+		hash.reset();
+		hash.update(input, 0, length);
+		putInt(word, 0, (int) hash.getValue());
+		result.write(word);
+		return result;
+	}
+
+	private static void putInt(byte[] b, int pos, int value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >> 8);
+		b[pos + 2] = (byte) (value >> 16);
+		b[pos + 3] = (byte) (value >> 24);
+	}
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.tukaani.xz.BasicArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Output stream that writes an xz file made of many small blocks, which
+ * can be compressed in parallel and, thanks to the index at the end of
+ * each xz stream, decompressed starting at any block.  Each block of
+ * {@link #BLOCK_SIZE} bytes is compressed into an xz stream of its own
+ * with the default preset; xz readers take such concatenated streams as
+ * one.
+ *
+ * @see TarFile
+ */
+class ParallelXZOutputStream extends ParallelBlockOutputStream {
+	/**
+	 * The size of the blocks compressed on their own, which is also the
+	 * most data decompressed in vain to reach an entry of the archive.
+	 * The dictionary is as large as the block, which makes the encoder of
+	 * each thread take about 47 MiB.
+	 */
+	static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+	private final LZMA2Options options;
+
+	/**
+	 * Creates a new stream writing to the given stream.
+	 *
+	 * @param out the stream to write the xz file to
+	 * @param parallel whether to compress the blocks on the pool
+	 * @throws IOException
+	 */
+	ParallelXZOutputStream(OutputStream out, boolean parallel) throws IOException {
+		super(out, BLOCK_SIZE, parallel);
+		options = new LZMA2Options();
+		// A dictionary larger than the block would only cost memory.
+		options.setDictSize(Math.min(options.getDictSize(), BLOCK_SIZE));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.ParallelBlockOutputStream#compress(byte[], int)
+	 */
+	protected ByteArrayOutputStream compress(byte[] input, int length)
+			throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(length / 4 + 64);
+		// The encoder buffers are large, reuse them across blocks.
+		XZOutputStream xz = new XZOutputStream(result, options, XZ.CHECK_CRC64,
+				BasicArrayCache.getInstance());
+		xz.write(input, 0, length);
+		xz.close();
+		return result;
+	}
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import io.airlift.compress.zstd.ZstdCompressor;
+
+/**
+ * Output stream that writes a Zstandard file, made of one frame per block
+ * of {@link #BLOCK_SIZE} bytes.  The frames are independent, so the blocks
+ * can be compressed in parallel; zstd readers take concatenated frames as
+ * one.
+ * <p>
+ * The blocks are compressed with the Zstandard compressor of
+ * aircompressor, which is an optional dependency, see
+ * {@link ArchiveFormat}.
+ * </p>
+ */
+class ParallelZstdOutputStream extends ParallelBlockOutputStream {
+	/**
+	 * The size of the blocks compressed on their own.
+	 */
+	static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Creates a new stream writing to the given stream.
+	 *
+	 * @param out the stream to write the Zstandard file to
+	 * @param parallel whether to compress the blocks on the pool
+	 */
+	ParallelZstdOutputStream(OutputStream out, boolean parallel) {
+		super(out, BLOCK_SIZE, parallel);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.ParallelBlockOutputStream#compress(byte[], int)
+	 */
+	protected ByteArrayOutputStream compress(byte[] input, int length)
+			throws IOException {
+		ZstdCompressor compressor = new ZstdCompressor();
+		byte[] frame = new byte[compressor.maxCompressedLength(length)];
+		int size = compressor.compress(input, 0, length, frame, 0, frame.length);
+		ByteArrayOutputStream result = new ByteArrayOutputStream(size);
+		result.write(frame, 0, size);
+		return result;
+	}
+}
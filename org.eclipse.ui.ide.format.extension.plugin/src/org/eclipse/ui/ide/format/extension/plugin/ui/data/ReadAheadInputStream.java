@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Input stream that reads another stream ahead on a thread of its own.
+ * The data is handed over through a fixed ring of blocks, so at most
+ * {@link #BLOCKS} blocks of {@link #BLOCK_SIZE} bytes are held at any time;
+ * the reading thread waits while the ring is full.  Used for decompressed
+ * archives, so that decompression overlaps with whatever the reader does
+ * with the data, such as writing it to the workspace.
+ * <p>
+ * The source stream is owned by the reading thread, which closes it when it
+ * is done.  Closing this stream stops the reading thread as soon as the
+ * read of the source in progress returns, without waiting for it.  Errors
+ * of the source are reported by the read at the position where they
+ * occurred.
+ * </p>
+ */
+class ReadAheadInputStream extends InputStream {
+	/**
+	 * The size of a block of the ring.
+	 */
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * The number of blocks of the ring.
+	 */
+	static final int BLOCKS = 16;
+
+	private final InputStream source;
+	private final byte[][] blocks = new byte[BLOCKS][];
+	private final int[] lengths = new int[BLOCKS];
+
+	// The ring, guarded by this.  The blocks from head on are full; the
+	// block at head is the one being read, if any.
+	private int head = 0;
+	private int count = 0;
+	private boolean finished = false;
+	private boolean closed = false;
+	private Throwable failure;
+
+	// The block being read, used by the reading side only.
+	private byte[] current;
+	private int currentPos = 0;
+	private int currentLen = 0;
+
+	/**
+	 * Creates a new stream and starts reading the given stream ahead.
+	 *
+	 * @param source the stream to read ahead
+	 */
+	ReadAheadInputStream(InputStream source) {
+		this.source = source;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				produce();
+			}
+		}, "Archive Read-Ahead"); //$NON-NLS-1$
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Fills the ring from the source until its end, or until this stream is
+	 * closed.  Runs on the reading thread.
+	 */
+	private void produce() {
+		int tail = 0;
+		try {
+			while (true) {
+				synchronized (this) {
+					while (count == BLOCKS && !closed) {
+						wait();
+					}
+					if (closed) {
+						return;
+					}
+				}
+				// The block at the tail is not visible to the reader until
+				// it is counted.
+				byte[] block = blocks[tail];
+				if (block == null) {
+					block = blocks[tail] = new byte[BLOCK_SIZE];
+				}
+				int length = 0;
+				int n = 0;
+				while (length < block.length
+						&& (n = source.read(block, length, block.length - length)) >= 0) {
+					length += n;
+				}
+				synchronized (this) {
+					if (length > 0) {
+						lengths[tail] = length;
+						tail = (tail + 1) % BLOCKS;
+						count++;
+						notifyAll();
+					}
+					if (n < 0) {
+						return;
+					}
+				}
+			}
+		} catch (Throwable e) {
+			synchronized (this) {
+				failure = e;
+			}
+		} finally {
+			synchronized (this) {
+				finished = true;
+				notifyAll();
+			}
+			try {
+				source.close();
+			} catch (IOException e) {
+				// Nobody is left to report this to.
+			}
+		}
+	}
+
+	/**
+	 * Hands the block read so far back to the ring and waits for the next
+	 * one.
+	 *
+	 * @return false at the end of the data
+	 * @throws IOException if the source failed, or this stream is closed
+	 */
+	private synchronized boolean nextBlock() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed"); //$NON-NLS-1$
+		}
+		if (current != null) {
+			current = null;
+			head = (head + 1) % BLOCKS;
+			count--;
+			notifyAll();
+		}
+		while (count == 0 && !finished && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		if (closed) {
+			throw new IOException("Stream closed"); //$NON-NLS-1$
+		}
+		if (count == 0) {
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if (failure != null) {
+				IOException e = new IOException(failure.toString());
+				e.initCause(failure);
+				throw e;
+			}
+			return false;
+		}
+		current = blocks[head];
+		currentLen = lengths[head];
+		currentPos = 0;
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (currentPos >= currentLen && !nextBlock()) {
+			return -1;
+		}
+		int size = Math.min(len, currentLen - currentPos);
+		System.arraycopy(current, currentPos, b, off, size);
+		currentPos += size;
+		return size;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() throws IOException {
+		if (currentPos >= currentLen && !nextBlock()) {
+			return -1;
+		}
+		return current[currentPos++] & 0xff;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#skip(long)
+	 */
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		if (currentPos >= currentLen && !nextBlock()) {
+			return 0;
+		}
+		int size = (int) Math.min(n, currentLen - currentPos);
+		currentPos += size;
+		return size;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#available()
+	 */
+	public int available() {
+		return currentLen - currentPos;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	public synchronized void close() {
+		closed = true;
+		current = null;
+		currentPos = currentLen = 0;
+		notifyAll();
+	}
+}
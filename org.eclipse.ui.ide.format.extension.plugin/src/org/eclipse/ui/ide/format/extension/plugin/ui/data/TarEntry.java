@@ -20,7 +20,8 @@ public class TarEntry implements Cloneable
 	private String name;
 	private long mode, time, size;
 	private int type;
-	int filepos;
+	long filepos;
+	long datapos;
 
 	/**
 	 * Entry type for normal files.
@@ -39,11 +40,12 @@ public class TarEntry implements Cloneable
 	 * @param name filename
 	 * @param pos position in the file in bytes
 	 */
-	TarEntry(String name, int pos) {
+	TarEntry(String name, long pos) {
 		this.name = name;
 		mode = 0644;
 		type = FILE;
 		filepos = pos;
+		datapos = (pos < 0) ? -1 : pos + 512;
 		time = System.currentTimeMillis() / 1000;
 	}
 
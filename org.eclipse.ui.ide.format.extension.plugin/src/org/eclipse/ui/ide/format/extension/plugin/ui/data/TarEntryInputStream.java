@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream for the data of a single entry in an uncompressed tar
+ * archive.  The data is read with positioned reads on a shared
+ * <code>FileChannel</code>, so several entry streams can be open at the
+ * same time and none of them moves the position of the channel.  Small
+ * reads are served from a buffer, so that reading byte by byte does not
+ * cost a system call per byte.
+ */
+class TarEntryInputStream extends InputStream {
+	private static final int BUFFER_SIZE = 8192;
+
+	private FileChannel channel;
+	private long position;
+	private long remaining;
+	private byte[] buffer;
+	private int bufferPos = 0;
+	private int bufferLen = 0;
+
+	/**
+	 * Creates a new stream reading <code>size</code> bytes starting at
+	 * <code>position</code> in the given channel.
+	 *
+	 * @param channel channel of the archive file
+	 * @param position offset of the entry data in the archive
+	 * @param size size of the entry data
+	 */
+	TarEntryInputStream(FileChannel channel, long position, long size) {
+		this.channel = channel;
+		this.position = position;
+		this.remaining = size;
+	}
+
+	/**
+	 * Reads from the channel at the current position.
+	 */
+	private int readChannel(byte[] b, int off, int len) throws IOException {
+		int size = channel.read(ByteBuffer.wrap(b, off, len), position);
+		if (size < 0) {
+			throw new IOException("early end of stream"); //$NON-NLS-1$
+		}
+		position += size;
+		return size;
+	}
+
+	/**
+	 * Refills the buffer once it has been consumed.
+	 *
+	 * @return false at the end of the entry
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if (bufferPos < bufferLen) {
+			return true;
+		}
+		if (remaining <= 0) {
+			return false;
+		}
+		if (buffer == null) {
+			buffer = new byte[(int) Math.min(remaining, BUFFER_SIZE)];
+		}
+		bufferPos = 0;
+		bufferLen = readChannel(buffer, 0, (int) Math.min(remaining, buffer.length));
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining <= 0) {
+			return -1;
+		}
+		if (len > remaining) {
+			len = (int) remaining;
+		}
+		int size;
+		if (bufferPos < bufferLen) {
+			size = Math.min(len, bufferLen - bufferPos);
+			System.arraycopy(buffer, bufferPos, b, off, size);
+			bufferPos += size;
+		} else if (len >= BUFFER_SIZE) {
+			size = readChannel(b, off, len);
+		} else {
+			fill();
+			size = Math.min(len, bufferLen);
+			System.arraycopy(buffer, 0, b, off, size);
+			bufferPos = size;
+		}
+		remaining -= size;
+		return size;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() throws IOException {
+		if (remaining <= 0 || !fill()) {
+			return -1;
+		}
+		remaining--;
+		return buffer[bufferPos++] & 0xff;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#skip(long)
+	 */
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		if (n > remaining) {
+			n = remaining;
+		}
+		int buffered = (int) Math.min(n, bufferLen - bufferPos);
+		bufferPos += buffered;
+		position += n - buffered;
+		remaining -= n;
+		return n;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#available()
+	 */
+	public int available() throws IOException {
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	public void close() {
+		// The channel is shared with the TarFile, which closes it.
+		remaining = 0;
+		bufferPos = bufferLen;
+	}
+}
@@ -12,12 +12,20 @@
 package org.eclipse.ui.ide.format.extension.plugin.ui.data;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.zip.GZIPInputStream;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
 
 /**
  * Reads a .tar or .tar.gz archive file, providing an index enumeration
@@ -27,12 +35,47 @@ import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
  * @since 3.1
  */
 public class TarFile {
+	/**
+	 * A reasonable memory budget for the decompressor checkpoints of a
+	 * compressed archive, see {@link #TarFile(File, long)}.
+	 */
+	public static final long DEFAULT_CHECKPOINT_MEMORY = 32 * 1024 * 1024;
+
+	/**
+	 * Minimum distance between two checkpoints in a gzip stream.  Every
+	 * checkpoint keeps 32 KiB of history.
+	 */
+	private static final long GZIP_CHECKPOINT_SPAN = 1024 * 1024;
+
+	/**
+	 * Entries read after a jump to a checkpoint are only read ahead on a
+	 * thread of their own from this size, the size of its ring.
+	 */
+	private static final long READ_AHEAD_MIN_SIZE = ReadAheadInputStream.BLOCKS
+			* ReadAheadInputStream.BLOCK_SIZE;
+
 	private File file;
 	private TarInputStream entryEnumerationStream;
 	private TarEntry curEntry;
 	private TarInputStream entryStream;
 
 	private InputStream internalEntryStream;
+
+	private ArchiveFormat format;
+	private boolean compressed;
+	private CheckpointIndex checkpoints;
+	// Memory budget of the gzip checkpoints not recorded yet, see
+	// openCheckpointed(long).
+	private long deferredCheckpointMemory;
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+
+	// Entries seen so far by the enumeration, in archive order.
+	@SuppressWarnings("rawtypes")
+	private List entryIndex = new ArrayList();
+	@SuppressWarnings("rawtypes")
+	private Map entryTable = new HashMap();
+	private boolean indexComplete = false;
 	
 	/**
 	 * Create a new TarFile for the given file.
@@ -42,34 +85,40 @@ public class TarFile {
 	 * @throws IOException
 	 */
 	public TarFile(File file) throws TarException, IOException {
+		this(file, 0);
+	}
+
+	/**
+	 * Create a new TarFile for the given file.  If the file is compressed,
+	 * decompressor checkpoints are recorded while the entries are
+	 * enumerated, so that {@link #getInputStream(TarEntry)} can resume
+	 * decompression close to any entry instead of starting over from the
+	 * beginning of the file.  The blocks of an xz file are listed by its
+	 * index and serve as checkpoints right away.  Plain gzip files are
+	 * first read with zlib, and only record checkpoints once an entry
+	 * before the current one is read.
+	 * 
+	 * @param file
+	 * @param checkpointMemory the memory budget for the checkpoints in
+	 *            bytes, or 0 to not record any
+	 * @throws TarException
+	 * @throws IOException
+	 */
+	public TarFile(File file, long checkpointMemory) throws TarException, IOException {
 		this.file = file;
 		
-		InputStream in = new FileInputStream(file);
-		//boolean flag to signify whether continue testing file type or not
-		boolean fileTypeIdentified = false;
-		
-		// First, check if it's a GZIPInputStream.
-		try {
-			in = new GZIPInputStream(in);
-			fileTypeIdentified = true;
-		} catch(IOException e) {
-			//If it is not compressed we close
-			//the old one and recreate
-			in.close();
-			in = new FileInputStream(file);
-		}
-		// try bzip2, if it still fails, treat it as a simple uncompressed tar.
-		if (!fileTypeIdentified) {
-			try {
-				in = new BZip2CompressorInputStream(in);
-				fileTypeIdentified = true;
-			} catch (IOException e) {
-				// If it is not compressed we close
-				// the old one and recreate
-				in.close();
-				in = new FileInputStream(file);
-			}
+		format = ArchiveFormat.detect(file);
+		if (!format.isSupportedCompression()) {
+			throw new TarException(DataTransferMessages.TarImport_invalid_tar_format);
+		}
+		compressed = format.isCompressed();
+		InputStream in;
+		if (compressed && checkpointMemory > 0) {
+			in = openCheckpointed(checkpointMemory);
+		} else {
+			in = openDecompressed();
 		}
+		in = readAhead(in);
 		try {
 			entryEnumerationStream = new TarInputStream(in);
 		} catch (TarException ex) {
@@ -77,6 +126,161 @@ public class TarFile {
 			throw ex;
 		}
 		curEntry = entryEnumerationStream.getNextEntry();
+		addToIndex(curEntry);
+	}
+
+	/**
+	 * Create a new TarFile for the given file, listing its entries with
+	 * the given stream.  Subclasses reading the archive by other means
+	 * than a file stream must also override {@link #getInputStream(TarEntry)}.
+	 * 
+	 * @param file
+	 * @param entries a stream over the whole archive
+	 * @throws TarException
+	 * @throws IOException
+	 */
+	TarFile(File file, TarInputStream entries) throws TarException, IOException {
+		this.file = file;
+		entryEnumerationStream = entries;
+		curEntry = entryEnumerationStream.getNextEntry();
+		addToIndex(curEntry);
+	}
+
+	/**
+	 * Opens the compressed file with a decompressor that records
+	 * checkpoints.
+	 * 
+	 * @param checkpointMemory the memory budget for the checkpoints
+	 * @return the decompressed stream
+	 * @throws IOException
+	 */
+	private InputStream openCheckpointed(long checkpointMemory) throws IOException {
+		if (format.getCompression() == ArchiveFormat.LZ4
+				|| format.getCompression() == ArchiveFormat.ZSTD) {
+			// Decompressed fast enough to simply start over.
+			return openDecompressed();
+		}
+		if (format.getCompression() == ArchiveFormat.XZ) {
+			// The index of the file lists every block up front.
+			checkpoints = new CheckpointIndex(0, checkpointMemory);
+			SeekableXZInputStream in = openXZ();
+			for (int i = 0; i < in.getBlockCount(); i++) {
+				checkpoints.add(new CheckpointIndex.Checkpoint(in.getBlockPos(i),
+						in.getBlockCompPos(i) * 8, null));
+			}
+			return in;
+		}
+		if (isParallelGzip()) {
+			// Member starts need no history, keep all of them.
+			checkpoints = new CheckpointIndex(0, checkpointMemory);
+			return new ParallelGzipInputStream(file, checkpoints);
+		}
+		if (format.getCompression() == ArchiveFormat.GZIP) {
+			// Recording checkpoints takes the Java inflater, which is up to
+			// 2.5 times slower than zlib.  Most archives are only read
+			// front to back, so that is put off until the first jump back.
+			deferredCheckpointMemory = checkpointMemory;
+			return openDecompressed();
+		}
+		// Each bzip2 block start costs only a few bytes, keep all of them.
+		checkpoints = new CheckpointIndex(0, checkpointMemory);
+		return new BZip2BlockInputStream(file, checkpoints, WorkerPool.isParallel());
+	}
+
+	/**
+	 * Opens the xz file for reading from any of its blocks.
+	 * 
+	 * @return the decompressed stream
+	 * @throws IOException
+	 */
+	private SeekableXZInputStream openXZ() throws IOException {
+		SeekableFileInputStream in = new SeekableFileInputStream(file);
+		try {
+			return new SeekableXZInputStream(in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the file, decompressing bzip2 blocks and blocked gzip members
+	 * in parallel when there are processors to spare.
+	 * 
+	 * @return the decompressed stream
+	 * @throws IOException
+	 */
+	private InputStream openDecompressed() throws IOException {
+		if (format.getCompression() == ArchiveFormat.BZIP2 && WorkerPool.isParallel()) {
+			return new BZip2BlockInputStream(file, (CheckpointIndex) null, true);
+		}
+		if (isParallelGzip()) {
+			return new ParallelGzipInputStream(file, (CheckpointIndex) null);
+		}
+		return format.openDecompressed();
+	}
+
+	/**
+	 * Moves the decompression of the given stream to a thread of its own,
+	 * so that it overlaps with the processing of the data read from it.
+	 * Uncompressed streams are returned as they are.
+	 * 
+	 * @param in the decompressed stream
+	 * @return the stream to read
+	 */
+	private InputStream readAhead(InputStream in) {
+		if (!compressed) {
+			return in;
+		}
+		return new ReadAheadInputStream(in);
+	}
+
+	/**
+	 * Returns whether the file is a gzip file whose members can be inflated
+	 * in parallel.  Other gzip files are inflated sequentially.
+	 */
+	private boolean isParallelGzip() {
+		return format.isBlockedGzip() && WorkerPool.isParallel();
+	}
+
+	/**
+	 * Records an entry returned by the enumeration stream in the entry
+	 * index.  A <code>null</code> entry marks the end of the archive.
+	 * 
+	 * @param entry the entry, or <code>null</code>
+	 */
+	@SuppressWarnings("unchecked")
+	private void addToIndex(TarEntry entry) {
+		if (entry == null) {
+			indexComplete = true;
+			return;
+		}
+		entryIndex.add(entry);
+		entryTable.put(entry.getName(), entry);
+	}
+
+	/**
+	 * Reads the rest of the archive headers so that the entry index
+	 * covers the whole archive.
+	 */
+	private void completeIndex() {
+		while (!indexComplete) {
+			advance();
+		}
+	}
+
+	/**
+	 * Moves the enumeration to the next entry of the archive.
+	 */
+	private void advance() {
+		try {
+			curEntry = entryEnumerationStream.getNextEntry();
+		} catch(TarException e) {
+			curEntry = null;
+		} catch(IOException e) {
+			curEntry = null;
+		}
+		addToIndex(curEntry);
 	}
 	
 	/**
@@ -89,6 +293,11 @@ public class TarFile {
 			entryEnumerationStream.close();
 		if (internalEntryStream != null)
 			internalEntryStream.close();
+		if (randomAccessFile != null) {
+			randomAccessFile.close();
+			randomAccessFile = null;
+			channel = null;
+		}
 	}
 
 	/**
@@ -102,32 +311,67 @@ public class TarFile {
 		this(new File(filename));
 	}
 
+	/**
+	 * Create a new TarFile for the given path name, recording decompressor
+	 * checkpoints within the given memory budget.
+	 * 
+	 * @param filename
+	 * @param checkpointMemory the memory budget for the checkpoints in
+	 *            bytes, or 0 to not record any
+	 * @throws TarException
+	 * @throws IOException
+	 * @see #TarFile(File, long)
+	 */
+	public TarFile(String filename, long checkpointMemory) throws TarException, IOException {
+		this(new File(filename), checkpointMemory);
+	}
+
 	/**
 	 * Returns an enumeration cataloguing the tar archive.
 	 * 
 	 * @return enumeration of all files in the archive
 	 */
-	@SuppressWarnings("rawtypes")
+	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public Enumeration entries() {
+		if (indexComplete) {
+			// The archive has been read through once already.
+			return Collections.enumeration(entryIndex);
+		}
 		return new Enumeration() {
+			private int next = 0;
+
 			public boolean hasMoreElements() {
-				return (curEntry != null);
+				while (next >= entryIndex.size() && !indexComplete) {
+					advance();
+				}
+				return next < entryIndex.size();
 			}
 			
 			public Object nextElement() {
-				TarEntry oldEntry = curEntry;
-				try {
-					curEntry = entryEnumerationStream.getNextEntry();
-				} catch(TarException e) {
-					curEntry = null;
-				} catch(IOException e) {
-					curEntry = null;
+				if (!hasMoreElements()) {
+					throw new NoSuchElementException();
 				}
-				return oldEntry;
+				return entryIndex.get(next++);
 			}
 		};
 	}
 
+	/**
+	 * Returns the entry with the given name, or <code>null</code> if the
+	 * archive does not contain such an entry.
+	 * 
+	 * @param name the name of the entry
+	 * @return the entry or <code>null</code>
+	 */
+	public TarEntry getEntry(String name) {
+		TarEntry entry = (TarEntry) entryTable.get(name);
+		if (entry == null && !indexComplete) {
+			completeIndex();
+			entry = (TarEntry) entryTable.get(name);
+		}
+		return entry;
+	}
+
 	/**
 	 * Returns a new InputStream for the given file in the tar archive.
 	 * 
@@ -137,35 +381,72 @@ public class TarFile {
 	 * @throws IOException
 	 */
 	public InputStream getInputStream(TarEntry entry) throws TarException, IOException {
+		if (!compressed && entry.datapos >= 0) {
+			// Uncompressed archives are read in place, no matter where the
+			// entry is relative to the last one read.
+			if (channel == null) {
+				randomAccessFile = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+				channel = randomAccessFile.getChannel();
+			}
+			return new TarEntryInputStream(channel, entry.datapos, entry.getSize());
+		}
+		if (checkpoints != null) {
+			CheckpointIndex.Checkpoint checkpoint = checkpoints.find(entry.filepos);
+			if (checkpoint != null && (entryStream == null
+					|| entryStream.getPosition() > entry.filepos
+					|| entryStream.getPosition() < checkpoint.out)) {
+				// Resuming at the checkpoint is closer than going on
+				// with the current stream.
+				if (internalEntryStream != null) {
+					internalEntryStream.close();
+				}
+				InputStream in;
+				if (format.getCompression() == ArchiveFormat.XZ) {
+					SeekableXZInputStream xz = openXZ();
+					try {
+						xz.seek(checkpoint.out);
+					} catch (IOException e) {
+						xz.close();
+						throw e;
+					}
+					in = xz;
+				} else if (isParallelGzip() && checkpoint.history == null) {
+					in = new ParallelGzipInputStream(file, checkpoint, null);
+				} else if (format.getCompression() == ArchiveFormat.GZIP) {
+					// Checkpoints recorded since the first jump back may not
+					// reach this far yet, go on recording past the last one.
+					in = new GzipCheckpointInputStream(file, checkpoint, checkpoints);
+				} else {
+					// Decoding the blocks after the entry in parallel costs
+					// more than it saves on a jump to a single entry.
+					in = new BZip2BlockInputStream(file, checkpoint, false);
+				}
+				// Small entries are read before a read-ahead thread would
+				// get ahead of the reader.
+				internalEntryStream = entry.getSize() < READ_AHEAD_MIN_SIZE ? in
+						: readAhead(in);
+				entryStream = new TarInputStream(internalEntryStream, entry, checkpoint.out) {
+					public void close() {
+						// Ignore close() since we want to reuse the stream.
+					}
+				};
+				return entryStream;
+			}
+		}
 		if(entryStream == null || !entryStream.skipToEntry(entry)) {
 			if (internalEntryStream != null) {
 				internalEntryStream.close();
 			}
-			internalEntryStream = new FileInputStream(file);
-			boolean fileFormatIdentified = false;
-			// First, check if it's a GZIPInputStream.
-			try {
-				internalEntryStream = new GZIPInputStream(internalEntryStream);
-				fileFormatIdentified = true;
-			} catch(IOException e) {
-				//If it is not compressed we close
-				//the old one and recreate
-				internalEntryStream.close();
-				internalEntryStream = new FileInputStream(file);
-			}
-			// try bzip2, if it still fails, treat it as normal uncompressed tar
-			// file.
-			if (!fileFormatIdentified) {
-				try {
-					internalEntryStream = new BZip2CompressorInputStream(
-							internalEntryStream);
-					fileFormatIdentified = true;
-				} catch (IOException e) {
-					// If it is not compressed we close
-					// the old one and recreate
-					internalEntryStream.close();
-					internalEntryStream = new FileInputStream(file);
-				}
+			if (entryStream != null && deferredCheckpointMemory > 0) {
+				// The archive is read out of order after all; record
+				// checkpoints while reading it again.
+				checkpoints = new CheckpointIndex(GZIP_CHECKPOINT_SPAN,
+						deferredCheckpointMemory);
+				deferredCheckpointMemory = 0;
+				internalEntryStream = readAhead(new GzipCheckpointInputStream(file,
+						checkpoints));
+			} else {
+				internalEntryStream = readAhead(openDecompressed());
 			}
 			entryStream = new TarInputStream(internalEntryStream, entry) {
 				public void close() {
@@ -11,14 +11,20 @@
 package org.eclipse.ui.ide.format.extension.plugin.ui.data;
 
 import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import org.eclipse.core.filesystem.EFS;
+import org.eclipse.core.filesystem.IFileStore;
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IResource;
@@ -32,15 +38,43 @@ import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream
  *
  * @since 3.1
  */
-public class TarFileExporter implements IFileExporter {
+public class TarFileExporter implements IReadAheadExporter {
     private TarOutputStream outputStream;
-    private GZIPOutputStream gzipOutputStream;
-    private BZip2CompressorOutputStream bzip2OutputStream;
+    private OutputStream gzipOutputStream;
+    private OutputStream bzip2OutputStream;
+    private OutputStream blockOutputStream;
+    private FileChannel channel;
+    private CompressionPolicy policy;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private final byte[] readBuffer = new byte[CompressionPolicy.SAMPLE_SIZE];
     
     public static final int UNCOMPRESSED = 0;
     public static final int GZIP = 1;
     public static final int BZIP2 = 2;
-    //public static final int XZ = 3;
+    public static final int XZ = 3;
+    public static final int LZ4 = 4;
+    public static final int ZSTD = 5;
+
+    /**
+     * Files at least this large are copied into uncompressed archives with
+     * FileChannel.transferTo; for smaller ones the extra flush costs more
+     * than the copy saves.
+     */
+    private static final long TRANSFER_THRESHOLD = 64 * 1024;
+
+    /**
+     * A gzip stream whose compression level can be changed between
+     * entries.
+     */
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+        LevelGZIPOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        void setLevel(int level) {
+            def.setLevel(level);
+        }
+    }
 
     /**
      *	Create an instance of this class.
@@ -50,12 +84,7 @@ public class TarFileExporter implements IFileExporter {
      *	@exception java.io.IOException
      */
     public TarFileExporter(String filename, boolean compress) throws IOException {
-    	if(compress) {
-    		gzipOutputStream = new GZIPOutputStream(new FileOutputStream(filename));
-    		outputStream = new TarOutputStream(new BufferedOutputStream(gzipOutputStream));
-    	} else {
-    		outputStream = new TarOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
-    	}
+    	this(filename, compress ? GZIP : UNCOMPRESSED);
     }
     
 	/**
@@ -66,6 +95,11 @@ public class TarFileExporter implements IFileExporter {
 	 * TarFileExporter.UNCOMPRESSED for uncompressed .tar files<br />
 	 * TarFileExporter.GZIP for Gzip compressed .tar.gz files<br />
 	 * TarFileExporter.BZIP2 for Bzip2 compressed .tar.bz2 files<br />
+	 * TarFileExporter.XZ for xz compressed .tar.xz files<br />
+	 * TarFileExporter.LZ4 for LZ4 compressed .tar.lz4 files<br />
+	 * TarFileExporter.ZSTD for Zstandard compressed .tar.zst files<br />
+	 * The last two are only available with the aircompressor library, see
+	 * {@link #isSupported(int)}.
 	 * 
 	 * @param mode
 	 * @exception java.lang.IllegalArgumentException
@@ -73,30 +107,144 @@ public class TarFileExporter implements IFileExporter {
 	 */
 	public TarFileExporter(String filename, int compressMode)
 			throws IOException, IllegalArgumentException {
+		this(filename, compressMode, false);
+	}
+
+	/**
+	 * Create an instance of this class, setting the compression mode of the
+	 * exporter and whether to compress on several threads.  Compressing in
+	 * parallel gives a different but equally valid compressed file; it is
+	 * only done where it pays off, and ignored otherwise.
+	 * 
+	 * @param filename
+	 * @param compressMode one of the modes of
+	 *            {@link #TarFileExporter(String, int)}
+	 * @param parallel whether to compress blocks of the archive in parallel
+	 * @exception java.lang.IllegalArgumentException
+	 * @exception java.io.IOException
+	 * @since 3.4
+	 */
+	public TarFileExporter(String filename, int compressMode, boolean parallel)
+			throws IOException, IllegalArgumentException {
 		switch (compressMode) {
 		case UNCOMPRESSED:
-			outputStream = new TarOutputStream(new BufferedOutputStream(
-					new FileOutputStream(filename)));
+			FileOutputStream file = new FileOutputStream(filename);
+			channel = file.getChannel();
+			outputStream = new TarOutputStream(new BufferedOutputStream(file));
 			break;
 		case GZIP:
-			gzipOutputStream = new GZIPOutputStream(new FileOutputStream(
-					filename));
+			if (parallel && ParallelDeflateOutputStream.isSupported()) {
+				gzipOutputStream = new ParallelGZIPOutputStream(new FileOutputStream(
+						filename));
+			} else {
+				gzipOutputStream = new LevelGZIPOutputStream(new FileOutputStream(
+						filename));
+			}
 			outputStream = new TarOutputStream(new BufferedOutputStream(
 					gzipOutputStream));
 			break;
 		case BZIP2:
-			bzip2OutputStream = new BZip2CompressorOutputStream(
-					new FileOutputStream(filename));
+			if (parallel && ParallelBZip2OutputStream.isSupported()) {
+				bzip2OutputStream = new ParallelBZip2OutputStream(
+						new FileOutputStream(filename));
+			} else {
+				bzip2OutputStream = new BZip2CompressorOutputStream(
+						new FileOutputStream(filename));
+			}
 			outputStream = new TarOutputStream(new BufferedOutputStream(
 					bzip2OutputStream));
 			break;
-		// case XZ
+		case XZ:
+			blockOutputStream = new ParallelXZOutputStream(new FileOutputStream(
+					filename), parallel && WorkerPool.isParallel());
+			outputStream = new TarOutputStream(new BufferedOutputStream(
+					blockOutputStream));
+			break;
+		case LZ4:
+			checkSupported(compressMode);
+			blockOutputStream = new ParallelLZ4OutputStream(new FileOutputStream(
+					filename), parallel && WorkerPool.isParallel());
+			outputStream = new TarOutputStream(new BufferedOutputStream(
+					blockOutputStream));
+			break;
+		case ZSTD:
+			checkSupported(compressMode);
+			blockOutputStream = new ParallelZstdOutputStream(new FileOutputStream(
+					filename), parallel && WorkerPool.isParallel());
+			outputStream = new TarOutputStream(new BufferedOutputStream(
+					blockOutputStream));
+			break;
 		default:
 			throw new IllegalArgumentException();// TO DO: DEFINE MESSAGE IN THE
 													// UTILITY CLASS!
 		}
 	}
     
+	/**
+	 * Returns whether archives can be written with the given compression
+	 * mode.  {@link #LZ4} and {@link #ZSTD} need the optional aircompressor
+	 * library and a Java 8 runtime.
+	 * 
+	 * @param compressMode one of the modes of
+	 *            {@link #TarFileExporter(String, int)}
+	 * @return true if the mode can be used
+	 * @since 3.4
+	 */
+	public static boolean isSupported(int compressMode) {
+		// The modes share their values with the compressions of ArchiveFormat.
+		return ArchiveFormat.isSupported(compressMode);
+	}
+
+	private static void checkSupported(int compressMode) {
+		if (!isSupported(compressMode)) {
+			throw new IllegalArgumentException(
+					DataTransferMessages.ArchiveFileExportOperation_unsupportedTarMode);
+		}
+	}
+
+	/**
+	 * Set the policy deciding which files are not worth compressing.  Only
+	 * gzip compressed archives follow it: the data of the files of at least
+	 * {@link CompressionPolicy#SAMPLE_SIZE} bytes it turns down is written
+	 * into the gzip stream without compression.  Smaller files, headers
+	 * and everything else are compressed.
+	 *
+	 * @param policy the policy, or <code>null</code> to compress all files
+	 */
+	void setCompressionPolicy(CompressionPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Returns whether the archive is written uncompressed.  Large files are
+	 * then copied into it by the file system rather than read into memory.
+	 *
+	 * @return true for an uncompressed .tar file
+	 */
+	boolean isUncompressed() {
+		return channel != null;
+	}
+
+	/**
+	 * Sets the compression level of the gzip stream for the next entry.
+	 *
+	 * @param level the compression level
+	 * @throws IOException
+	 */
+	private void setLevel(int level) throws IOException {
+		if (level == this.level) {
+			return;
+		}
+		this.level = level;
+		// Compress what is buffered of the entries before at their level.
+		outputStream.flush();
+		if (gzipOutputStream instanceof ParallelDeflateOutputStream) {
+			((ParallelDeflateOutputStream) gzipOutputStream).setLevel(level);
+		} else {
+			((LevelGZIPOutputStream) gzipOutputStream).setLevel(level);
+		}
+	}
+
     /**
      *	Do all required cleanup now that we're finished with the
      *	currently-open .tar.gz
@@ -104,12 +252,18 @@ public class TarFileExporter implements IFileExporter {
      *	@exception java.io.IOException
      */
     public void finished() throws IOException {
+        if (policy != null && gzipOutputStream != null) {
+            // The end of archive blocks.
+            setLevel(Deflater.DEFAULT_COMPRESSION);
+        }
         outputStream.close();
         if(gzipOutputStream != null) {
         	gzipOutputStream.close();
         }else if(bzip2OutputStream != null)
         {
         	bzip2OutputStream.close();
+        }else if(blockOutputStream != null) {
+        	blockOutputStream.close();
         }
     }
 
@@ -127,12 +281,30 @@ public class TarFileExporter implements IFileExporter {
 			throw new FileNotFoundException(contents.getFullPath().toOSString());
 		}
     	
+		IFileStore store = EFS.getStore(location);
+		long length = store.fetchInfo().getLength();
+		if (channel != null && length >= TRANSFER_THRESHOLD
+				&& contents.isSynchronized(IResource.DEPTH_ZERO)) {
+			File file = store.toLocalFile(EFS.NONE, null);
+			if (file != null) {
+				transfer(entry, file, length);
+				return;
+			}
+		}
+
     	InputStream contentStream = contents.getContents(false);
-    	entry.setSize(EFS.getStore(location).fetchInfo().getLength());
-    	outputStream.putNextEntry(entry);
+    	entry.setSize(length);
         try {
-            int n;
-            byte[] readBuffer = new byte[4096];
+            int n = 0;
+            int entryLevel = Deflater.DEFAULT_COMPRESSION;
+            if (isSampled(length)) {
+                n = readSample(contentStream);
+                entryLevel = chooseLevel(entry, readBuffer, n);
+            }
+            putNextEntry(entry, entryLevel);
+            if (n > 0) {
+                outputStream.write(readBuffer, 0, n);
+            }
             while ((n = contentStream.read(readBuffer)) > 0) {
                 outputStream.write(readBuffer, 0, n);
             }
@@ -145,6 +317,98 @@ public class TarFileExporter implements IFileExporter {
     	outputStream.closeEntry();    	
     }
 
+	/**
+	 * Returns whether the level for an entry of the given size is chosen by
+	 * the compression policy.  Small files are not worth the cost of
+	 * switching the level.
+	 *
+	 * @param length the size of the entry
+	 * @return true if the first bytes of the entry are to be sampled
+	 */
+	private boolean isSampled(long length) {
+		return policy != null && gzipOutputStream != null
+				&& length >= CompressionPolicy.SAMPLE_SIZE;
+	}
+
+	/**
+	 * Chooses the level of the gzip stream for the data of an entry, as the
+	 * compression policy decides from its first bytes.
+	 *
+	 * @param entry the entry, with its size set
+	 * @param sample the first bytes of the entry
+	 * @param length the number of bytes in the sample
+	 * @return the compression level
+	 */
+	private int chooseLevel(TarEntry entry, byte[] sample, int length) {
+		if (policy.shouldCompress(entry.getName(), sample, length)) {
+			return Deflater.DEFAULT_COMPRESSION;
+		}
+		policy.skipped(entry.getSize());
+		return Deflater.NO_COMPRESSION;
+	}
+
+	/**
+	 * Writes the header of an entry, and sets the level of the gzip stream
+	 * for its data.  Headers are always compressed, so the stream only
+	 * stays uncompressed for the data the policy turned down.
+	 *
+	 * @param entry the entry
+	 * @param entryLevel the compression level of the data
+	 * @throws IOException
+	 */
+	private void putNextEntry(TarEntry entry, int entryLevel)
+			throws IOException {
+		if (policy == null || gzipOutputStream == null) {
+			outputStream.putNextEntry(entry);
+			return;
+		}
+		setLevel(Deflater.DEFAULT_COMPRESSION);
+		outputStream.putNextEntry(entry);
+		setLevel(entryLevel);
+	}
+
+	/**
+	 * Reads the first bytes of a file into the read buffer, as many as fit
+	 * or the whole file.
+	 *
+	 * @param in the contents of the file
+	 * @return the number of bytes read
+	 * @throws IOException
+	 */
+	private int readSample(InputStream in) throws IOException {
+		int count = 0;
+		while (count < readBuffer.length) {
+			int n = in.read(readBuffer, count, readBuffer.length - count);
+			if (n < 0) {
+				break;
+			}
+			count += n;
+		}
+		return count;
+	}
+
+	/**
+	 * Writes a local file to an uncompressed archive, moving its contents
+	 * from disk to the archive with FileChannel.transferTo.
+	 *
+	 * @param entry the entry for the file
+	 * @param file the local file
+	 * @param length the length of the file
+	 * @throws IOException
+	 */
+	private void transfer(TarEntry entry, File file, long length)
+			throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			entry.setSize(length);
+			outputStream.putNextEntry(entry);
+			outputStream.transferFrom(in.getChannel(), length, channel);
+		} finally {
+			in.close();
+		}
+		outputStream.closeEntry();
+	}
+
     public void write(IContainer container, String destinationPath)
             throws IOException {
         TarEntry newEntry = new TarEntry(destinationPath);
@@ -159,7 +423,7 @@ public class TarFileExporter implements IFileExporter {
         	newEntry.setMode(newEntry.getMode() & ~0222);
         }
         newEntry.setFileType(TarEntry.DIRECTORY);
-        outputStream.putNextEntry(newEntry);
+        putNextEntry(newEntry, Deflater.DEFAULT_COMPRESSION);
     }
     
     /**
@@ -172,7 +436,47 @@ public class TarFileExporter implements IFileExporter {
      */
     public void write(IFile resource, String destinationPath)
             throws IOException, CoreException {
+        write(createEntry(resource, destinationPath), resource);
+    }
+
+    /* (non-Javadoc)
+     * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.IReadAheadExporter#write(org.eclipse.core.resources.IFile, java.lang.String, byte[])
+     */
+    public void write(IFile resource, String destinationPath, byte[] contents)
+            throws IOException, CoreException {
+        TarEntry entry = createEntry(resource, destinationPath);
+        entry.setSize(contents.length);
+        int entryLevel = Deflater.DEFAULT_COMPRESSION;
+        if (isSampled(contents.length)) {
+            entryLevel = chooseLevel(entry, contents, Math.min(contents.length,
+                    CompressionPolicy.SAMPLE_SIZE));
+        }
+        putNextEntry(entry, entryLevel);
+        outputStream.write(contents, 0, contents.length);
+        outputStream.closeEntry();
+    }
+
+    /* (non-Javadoc)
+     * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.IReadAheadExporter#write(java.lang.String, byte[], long)
+     */
+    public void write(String destinationPath, byte[] contents, long timeStamp)
+            throws IOException {
+        TarEntry entry = new TarEntry(destinationPath);
+        entry.setTime(timeStamp / 1000);
+        entry.setSize(contents.length);
+        putNextEntry(entry, Deflater.DEFAULT_COMPRESSION);
+        outputStream.write(contents, 0, contents.length);
+        outputStream.closeEntry();
+    }
 
+    /**
+     *  Create the entry for a file, with its time stamp and mode.
+     *
+     *  @param resource org.eclipse.core.resources.IFile
+     *  @param destinationPath java.lang.String
+     *  @return the entry
+     */
+    private TarEntry createEntry(IFile resource, String destinationPath) {
         TarEntry newEntry = new TarEntry(destinationPath);
         if(resource.getLocalTimeStamp() != IResource.NULL_STAMP) {
         	newEntry.setTime(resource.getLocalTimeStamp() / 1000);
@@ -184,7 +488,7 @@ public class TarFileExporter implements IFileExporter {
         if (attributes != null && attributes.isReadOnly()) {
         	newEntry.setMode(newEntry.getMode() & ~0222);
         }
-        write(newEntry, resource);
+        return newEntry;
     }
     
 }
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Decodes tar headers in place.  One instance holds the buffer a header is
+ * read into, and is reused for every header of an archive; the fields are
+ * parsed straight from its bytes.
+ */
+class TarHeader {
+	/**
+	 * The size of a header block.
+	 */
+	static final int SIZE = 512;
+
+	/**
+	 * Result of {@link #check(byte[])} for a header with a correct checksum.
+	 */
+	static final int VALID = 0;
+
+	/**
+	 * Result of {@link #check(byte[])} for a block of zeros, which marks the
+	 * end of an archive.
+	 */
+	static final int END = 1;
+
+	/**
+	 * Result of {@link #check(byte[])} for anything else.
+	 */
+	static final int INVALID = 2;
+
+	private static final int NAME = 0;
+	private static final int NAME_LENGTH = 100;
+	private static final int CHECKSUM = 148;
+	private static final int CHECKSUM_LENGTH = 8;
+	private static final int TYPE = 156;
+	private static final int PREFIX = 345;
+	private static final int PREFIX_LENGTH = 155;
+
+	/**
+	 * The header block.
+	 */
+	final byte[] buffer = new byte[SIZE];
+
+	private final char[] chars = new char[PREFIX_LENGTH + 1 + NAME_LENGTH];
+
+	/**
+	 * Checks the given header block in a single pass over its bytes.  The
+	 * checksum is the sum of the bytes of the header, with those of the
+	 * checksum field counted as spaces.
+	 *
+	 * @param header the header block
+	 * @return {@link #VALID}, {@link #END} or {@link #INVALID}
+	 */
+	static int check(byte[] header) {
+		int sum = 0;
+		for (int i = 0; i < SIZE; i++) {
+			sum += header[i] & 0xff;
+		}
+		if (sum == 0) {
+			return END;
+		}
+		long stored = 0;
+		boolean digits = false;
+		boolean terminated = false;
+		for (int i = CHECKSUM; i < CHECKSUM + CHECKSUM_LENGTH; i++) {
+			int c = header[i];
+			sum += ' ' - (c & 0xff);
+			if (terminated) {
+				continue;
+			}
+			if (c >= '0' && c <= '7') {
+				stored = (stored << 3) + (c - '0');
+				digits = true;
+			} else if (c == 0 || (c == ' ' && digits)) {
+				terminated = true;
+			} else if (c != ' ') {
+				return INVALID;
+			}
+		}
+		return (digits && stored == sum) ? VALID : INVALID;
+	}
+
+	/**
+	 * Returns the type flag of the header.
+	 *
+	 * @return the type, 0 for an old style regular file
+	 */
+	int getType() {
+		return buffer[TYPE];
+	}
+
+	/**
+	 * Parses a numeric field, either octal or, when the high bit of its
+	 * first byte is set, in the GNU base-256 encoding used for values too
+	 * large for octal.
+	 *
+	 * @param pos offset of the field in the header
+	 * @param length length of the field
+	 * @return the value
+	 * @throws TarException if the field is not a valid number
+	 */
+	long getNumber(int pos, int length) throws TarException {
+		byte[] header = buffer;
+		if ((header[pos] & 0x80) != 0) {
+			if ((header[pos] & 0x40) != 0) {
+				// Negative values are meaningless for the fields we read.
+				throw new TarException(DataTransferMessages.TarImport_invalid_tar_format);
+			}
+			long value = header[pos] & 0x3f;
+			for (int i = 1; i < length; i++) {
+				if ((value >>> 55) != 0) {
+					throw new TarException(DataTransferMessages.TarImport_invalid_tar_format);
+				}
+				value = (value << 8) | (header[pos + i] & 0xff);
+			}
+			return value;
+		}
+		long value = 0;
+		boolean digits = false;
+		for (int i = pos; i < pos + length; i++) {
+			int c = header[i];
+			if (c >= '0' && c <= '7') {
+				value = (value << 3) + (c - '0');
+				digits = true;
+			} else if (c == 0 || (c == ' ' && digits)) {
+				break;
+			} else if (c != ' ') {
+				throw new TarException(DataTransferMessages.TarImport_invalid_tar_format);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the name of the entry, including the ustar prefix.  Plain
+	 * ASCII names, by far the most common, are copied without going
+	 * through a charset decoder; anything else is decoded as UTF-8.
+	 *
+	 * @return the name
+	 * @throws UnsupportedEncodingException
+	 */
+	String getName() throws UnsupportedEncodingException {
+		byte[] header = buffer;
+		int nameLength = length(NAME, NAME_LENGTH);
+		int prefixLength = length(PREFIX, PREFIX_LENGTH);
+		int count = 0;
+		boolean ascii = true;
+		for (int i = PREFIX; i < PREFIX + prefixLength; i++) {
+			ascii &= header[i] >= 0;
+			chars[count++] = (char) header[i];
+		}
+		if (prefixLength > 0) {
+			chars[count++] = '/';
+		}
+		for (int i = NAME; i < NAME + nameLength; i++) {
+			ascii &= header[i] >= 0;
+			chars[count++] = (char) header[i];
+		}
+		if (ascii) {
+			return new String(chars, 0, count);
+		}
+		String name = new String(header, NAME, nameLength, "UTF8"); //$NON-NLS-1$
+		if (prefixLength > 0) {
+			String prefix = new String(header, PREFIX, prefixLength, "UTF8"); //$NON-NLS-1$
+			name = prefix + "/" + name; //$NON-NLS-1$
+		}
+		return name;
+	}
+
+	/**
+	 * Returns the length of the NUL terminated string field at the given
+	 * offset.
+	 */
+	private int length(int pos, int length) {
+		int end = pos;
+		while (end < pos + length && buffer[end] != 0) {
+			end++;
+		}
+		return end - pos;
+	}
+}
@@ -18,18 +18,33 @@ import java.io.InputStream;
 /**
  * Input stream for reading files in ustar format (tar) compatible
  * with the specification in IEEE Std 1003.1-2001.  Also supports
- * long filenames encoded using the GNU @LongLink extension.
+ * long filenames encoded using the GNU @LongLink extension, GNU base-256
+ * numeric fields, and the path and size records of POSIX.1-2001 (PAX)
+ * extended headers, so entries and archives may exceed 8 GiB.
  * 
  * @since 3.1
  */
 public class TarInputStream extends FilterInputStream
 {
-	private int nextEntry = 0;
-	private int nextEOF = 0;
-	private int filepos = 0;
-	private int bytesread = 0;
+	/**
+	 * The default size of the read buffer, the record size of tar with its
+	 * default blocking factor of 20.
+	 * 
+	 * @since 3.4
+	 */
+	public static final int DEFAULT_RECORD_SIZE = 10240;
+
+	private long nextEntry = 0;
+	private long nextEOF = 0;
+	private long filepos = 0;
+	private long bytesread = 0;
 	private TarEntry firstEntry = null;
 	private String longLinkName = null;
+	private long paxSize = -1;
+	private final TarHeader header = new TarHeader();
+	private final byte[] record;
+	private int recordPos = 0;
+	private int recordLen = 0;
 
 	/**
 	 * Creates a new tar input stream on the given input stream.
@@ -39,7 +54,22 @@ public class TarInputStream extends FilterInputStream
 	 * @throws IOException
 	 */
 	public TarInputStream(InputStream in) throws TarException, IOException {
+		this(in, DEFAULT_RECORD_SIZE);
+	}
+
+	/**
+	 * Creates a new tar input stream on the given input stream, reading
+	 * it in blocks of the given size.
+	 * 
+	 * @param in input stream
+	 * @param recordSize size of the read buffer in bytes
+	 * @throws TarException
+	 * @throws IOException
+	 * @since 3.4
+	 */
+	public TarInputStream(InputStream in, int recordSize) throws TarException, IOException {
 		super(in);
+		record = new byte[Math.max(recordSize, 512)];
 
 		// Read in the first TarEntry to make sure
 		// the input is a valid tar file stream.
@@ -57,22 +87,35 @@ public class TarInputStream extends FilterInputStream
 	 */
 	TarInputStream(InputStream in, TarEntry entry) throws TarException, IOException {
 		super(in);
+		record = new byte[DEFAULT_RECORD_SIZE];
 		skipToEntry(entry);
 	}
 
 	/**
-	 *  The checksum of a tar file header is simply the sum of the bytes in
-	 *  the header.
+	 * Create a new tar input stream on a stream that starts at the given
+	 * offset of the archive, skipping ahead to the given entry.
 	 * 
-	 * @param header
-	 * @return checksum
+	 * @param in input stream positioned at <code>offset</code>
+	 * @param entry skips to this entry in the file
+	 * @param offset the position of the stream in the archive
+	 * @throws TarException
+	 * @throws IOException
 	 */
-	private long headerChecksum(byte[] header) {
-		long sum = 0;
-		for(int i = 0; i < 512; i++) {
-			sum += header[i] & 0xff;
-		}
-		return sum;
+	TarInputStream(InputStream in, TarEntry entry, long offset) throws TarException, IOException {
+		super(in);
+		record = new byte[DEFAULT_RECORD_SIZE];
+		bytesread = offset;
+		filepos = offset;
+		skipToEntry(entry);
+	}
+
+	/**
+	 * Returns the number of bytes of the archive read so far.
+	 * 
+	 * @return the position in the archive
+	 */
+	long getPosition() {
+		return bytesread;
 	}
 
 	/**
@@ -84,67 +127,36 @@ public class TarInputStream extends FilterInputStream
 	 * @throws IOException
 	 */
 	boolean skipToEntry(TarEntry entry) throws TarException, IOException {
-		int bytestoskip = entry.filepos - bytesread;
+		long bytestoskip = entry.filepos - bytesread;
 		if(bytestoskip < 0) {
 			return false;
 		}
-		while(bytestoskip > 0) {
-			long ret = in.skip(bytestoskip);
-			if(ret < 0) {
-				throw new IOException("early end of stream"); //$NON-NLS-1$
-			}
-			bytestoskip -= ret;
-			bytesread += ret;
-		}
+		skipFully(bytestoskip);
 		filepos = entry.filepos;
 		nextEntry = 0;
 		nextEOF = 0;
 		// Read next header to seek to file data.
 		getNextEntry();
+		// The header alone may not hold the size of the entry, when it
+		// came from an extended header.
+		filepos = entry.filepos;
+		setEntrySize(entry.getSize());
 		return true;
 	}
 
 	/**
-	 * Returns true if the header checksum is correct.
+	 * Sets the size of the data following the header just read.
 	 * 
-	 * @param header
-	 * @return true if this header has a valid checksum
+	 * @param size the size of the entry
 	 */
-	private boolean isValidTarHeader(byte[] header) {
-		long fileChecksum, calculatedChecksum;
-		int pos, i;
-		
-		pos = 148;
-		StringBuffer checksumString = new StringBuffer();
-		for(i = 0; i < 8; i++) {
-			if(header[pos + i] == ' ') {
-				continue;
-			}
-			if(header[pos + i] == 0 || !Character.isDigit((char) header[pos + i])) {
-				break;
-			}
-			checksumString.append((char) header[pos + i]);
-		}
-		if(checksumString.length() == 0) {
-			return false;
-		}
-		if(checksumString.charAt(0) != '0') {
-			checksumString.insert(0, '0');
-		}
-		try {
-			fileChecksum = Long.decode(checksumString.toString()).longValue();
-		} catch(NumberFormatException exception) {
-			//This is not valid if it cannot be parsed
-			return false;
-		}
-
-		// Blank out the checksum.
-		for(i = 0; i < 8; i++) {
-			header[pos + i] = ' ';
+	private void setEntrySize(long size) {
+		nextEOF = size;
+		if(size % 512 > 0) {
+			nextEntry = size + (512 - (size % 512));
+		} else {
+			nextEntry = size;
 		}
-		calculatedChecksum = headerChecksum(header);
-
-		return (fileChecksum == calculatedChecksum);
+		filepos += (nextEntry + 512);
 	}
 
 	/**
@@ -156,28 +168,21 @@ public class TarInputStream extends FilterInputStream
 	 * @throws IOException
 	 */
 	TarEntry getNextEntryInternal() throws TarException, IOException {
-		byte[] header = new byte[512];
-		int pos = 0;
-		int i;
-
 		if(firstEntry != null) {
 			TarEntry entryReturn = firstEntry;
 			firstEntry = null;
 			return entryReturn;
 		}
 
-		while(nextEntry > 0) {
-			long ret = in.skip(nextEntry);
-			if(ret < 0) {
-				throw new IOException("early end of stream"); //$NON-NLS-1$
-			}
-			nextEntry -= ret;
-			bytesread += ret;
+		if(nextEntry > 0) {
+			skipFully(nextEntry);
+			nextEntry = 0;
 		}
 
+		byte[] buffer = header.buffer;
 		int bytestoread = 512;
 		while(bytestoread > 0) {
-			int ret = super.read(header, 512 - bytestoread, bytestoread);
+			int ret = readRecord(buffer, 512 - bytestoread, bytestoread);
 			if( ret < 0 ) {
 				throw new IOException("early end of stream"); //$NON-NLS-1$
 			}
@@ -185,97 +190,38 @@ public class TarInputStream extends FilterInputStream
 			bytesread += ret;
 		}
 
-		// If we have a header of all zeros, this marks the end of the file.
-		if(headerChecksum(header) == 0) {
-			// We are at the end of the file.
+		switch(TarHeader.check(buffer)) {
+		case TarHeader.END:
+			// A header of all zeros marks the end of the file.
 			if(filepos > 0) {
 				return null;
 			}
-			
 			// Invalid stream.
 			throw new TarException("not in tar format"); //$NON-NLS-1$
-		}
-		
-		// Validate checksum.
-		if(!isValidTarHeader(header)) {
+		case TarHeader.INVALID:
 			throw new TarException("not in tar format"); //$NON-NLS-1$
 		}
 
-		while (pos < 100 && header[pos] != 0) {
-			pos++;
-		}
-		String name = new String(header, 0, pos, "UTF8"); //$NON-NLS-1$
-		// Prepend the prefix here.
-		pos = 345;
-		if(header[pos] != 0) {
-			while (pos < 500 && header[pos] != 0) {
-				pos++;
-			}
-			String prefix = new String(header, 345, pos - 345, "UTF8"); //$NON-NLS-1$
-			name = prefix + "/" + name; //$NON-NLS-1$
-		}
-		
 		TarEntry entry;
 		if(longLinkName != null) {
 			entry = new TarEntry(longLinkName, filepos);
 			longLinkName = null;
 		} else {
-			entry = new TarEntry(name, filepos);
-		}
-		if(header[156] != 0) {
-			entry.setFileType(header[156]);
-		}
-		
-		pos = 100;
-		StringBuffer mode = new StringBuffer();
-		for(i = 0; i < 8; i++) {
-			if(header[pos + i] == 0) {
-				break;
-			}
-			if(header[pos + i] == ' ') {
-				continue;
-			}
-			mode.append((char) header[pos + i]);
-		}
-		if(mode.length() > 0 && mode.charAt(0) != '0') {
-			mode.insert(0, '0');
-		}
-		try {
-			long fileMode = Long.decode(mode.toString()).longValue();
-			entry.setMode(fileMode);
-		} catch(NumberFormatException nfe) {
-			throw new TarException(DataTransferMessages.TarImport_invalid_tar_format, nfe);
-		}
-		
-		pos = 100 + 24;
-		StringBuffer size = new StringBuffer();
-		for(i = 0; i < 12; i++) {
-			if(header[pos + i] == 0) {
-				break;
-			}
-			if(header[pos + i] == ' ') {
-				continue;
-			}
-			size.append((char) header[pos + i]);
+			entry = new TarEntry(header.getName(), filepos);
 		}
-		if(size.charAt(0) != '0') {
-			size.insert(0, '0');
+		if(header.getType() != 0) {
+			entry.setFileType(header.getType());
 		}
-		int fileSize;
-		try {
-			fileSize = Integer.decode(size.toString()).intValue();
-		} catch(NumberFormatException nfe) {
-			throw new TarException(DataTransferMessages.TarImport_invalid_tar_format, nfe);
+		entry.setMode(header.getNumber(100, 8));
+
+		long fileSize = header.getNumber(100 + 24, 12);
+		if(paxSize >= 0) {
+			fileSize = paxSize;
+			paxSize = -1;
 		}
 
 		entry.setSize(fileSize);
-		nextEOF = fileSize;
-		if(fileSize % 512 > 0) {
-			nextEntry = fileSize + (512 - (fileSize % 512));
-		} else {
-			nextEntry = fileSize;
-		}
-		filepos += (nextEntry + 512);
+		setEntrySize(fileSize);
 		return entry;
 	}
 
@@ -288,30 +234,185 @@ public class TarInputStream extends FilterInputStream
 	 * @throws IOException
 	 */
 	public TarEntry getNextEntry() throws TarException, IOException {
-		TarEntry entry = getNextEntryInternal();
-
-		if(entry != null && entry.getName().equals("././@LongLink")) { //$NON-NLS-1$
-			// This is a GNU extension for doing long filenames.
-			// We get a file called ././@LongLink which just contains
-			// the real pathname.
-			byte[] longNameData = new byte[(int) entry.getSize()];
-			int bytesread = 0;
-			while (bytesread < longNameData.length) {
-				int cur = read(longNameData, bytesread, longNameData.length - bytesread);
-				if (cur < 0) {
-					throw new IOException("early end of stream"); //$NON-NLS-1$
+		while(true) {
+			TarEntry entry = getNextEntryInternal();
+			if(entry == null) {
+				return null;
+			}
+
+			int type = entry.getFileType();
+			if(entry.getName().equals("././@LongLink")) { //$NON-NLS-1$
+				// This is a GNU extension for doing long filenames.
+				// We get a file called ././@LongLink which just contains
+				// the real pathname.
+				byte[] longNameData = readEntryData(entry);
+				if(type == 'K') {
+					// The long name of a link target, which we do not use.
+					continue;
+				}
+				int pos = 0;
+				while (pos < longNameData.length && longNameData[pos] != 0) {
+					pos++;
 				}
-				bytesread += cur;
+				longLinkName = new String(longNameData, 0, pos, "UTF8"); //$NON-NLS-1$
+				continue;
+			}
+			if(type == 'x') {
+				// A PAX extended header for the entry that follows.
+				parsePaxHeader(readEntryData(entry));
+				continue;
+			}
+			if(type == 'g') {
+				// PAX global headers hold nothing we use.
+				readEntryData(entry);
+				continue;
 			}
+			return entry;
+		}
+	}
 
-			int pos = 0;
-			while (pos < longNameData.length && longNameData[pos] != 0) {
+	/**
+	 * Reads all the data of the current entry, which must be small.
+	 * 
+	 * @param entry the current entry
+	 * @return the data
+	 * @throws TarException
+	 * @throws IOException
+	 */
+	private byte[] readEntryData(TarEntry entry) throws TarException, IOException {
+		if(entry.getSize() > Integer.MAX_VALUE) {
+			throw new TarException(DataTransferMessages.TarImport_invalid_tar_format);
+		}
+		byte[] data = new byte[(int) entry.getSize()];
+		int bytesread = 0;
+		while (bytesread < data.length) {
+			int cur = read(data, bytesread, data.length - bytesread);
+			if (cur < 0) {
+				throw new IOException("early end of stream"); //$NON-NLS-1$
+			}
+			bytesread += cur;
+		}
+		return data;
+	}
+
+	/**
+	 * Reads the records of a PAX extended header, each of the form
+	 * "<length> <keyword>=<value>\n", and keeps the path and size for the
+	 * next entry.
+	 * 
+	 * @param data the extended header data
+	 * @throws TarException if a record is malformed
+	 * @throws IOException
+	 */
+	private void parsePaxHeader(byte[] data) throws TarException, IOException {
+		int pos = 0;
+		while(pos < data.length) {
+			int start = pos;
+			int length = 0;
+			while(pos < data.length && data[pos] != ' ') {
+				int digit = data[pos] - '0';
+				if(digit < 0 || digit > 9 || length > data.length) {
+					throw new TarException(DataTransferMessages.TarImport_invalid_tar_format);
+				}
+				length = length * 10 + digit;
+				pos++;
+			}
+			int end = start + length;
+			if(pos >= end || end > data.length) {
+				throw new TarException(DataTransferMessages.TarImport_invalid_tar_format);
+			}
+			int keyword = ++pos;
+			while(pos < end && data[pos] != '=') {
 				pos++;
 			}
-			longLinkName = new String(longNameData, 0, pos, "UTF8"); //$NON-NLS-1$
-			return getNextEntryInternal();
+			if(pos >= end) {
+				throw new TarException(DataTransferMessages.TarImport_invalid_tar_format);
+			}
+			String key = new String(data, keyword, pos - keyword, "UTF8"); //$NON-NLS-1$
+			// The value is followed by a newline.
+			int valueEnd = (data[end - 1] == '\n') ? end - 1 : end;
+			String value = new String(data, pos + 1, valueEnd - (pos + 1), "UTF8"); //$NON-NLS-1$
+			if(key.equals("path")) { //$NON-NLS-1$
+				longLinkName = value;
+			} else if(key.equals("size")) { //$NON-NLS-1$
+				try {
+					paxSize = Long.parseLong(value);
+				} catch(NumberFormatException nfe) {
+					throw new TarException(DataTransferMessages.TarImport_invalid_tar_format, nfe);
+				}
+			}
+			pos = end;
+		}
+	}
+
+	/**
+	 * Refills the record buffer once it has been consumed.
+	 * 
+	 * @return false at the end of the underlying stream
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if(recordPos < recordLen) {
+			return true;
+		}
+		int ret = in.read(record, 0, record.length);
+		if(ret < 0) {
+			return false;
+		}
+		recordPos = 0;
+		recordLen = ret;
+		return true;
+	}
+
+	/**
+	 * Reads from the record buffer.  Reads of at least a whole record go
+	 * straight to the underlying stream once the buffer is empty.
+	 * 
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 * @throws IOException
+	 */
+	private int readRecord(byte[] b, int off, int len) throws IOException {
+		if(recordPos == recordLen && len >= record.length) {
+			return in.read(b, off, len);
+		}
+		if(!fill()) {
+			return -1;
+		}
+		if(len > recordLen - recordPos) {
+			len = recordLen - recordPos;
+		}
+		System.arraycopy(record, recordPos, b, off, len);
+		recordPos += len;
+		return len;
+	}
+
+	/**
+	 * Skips the given number of bytes, first from the record buffer and
+	 * then in the underlying stream.
+	 * 
+	 * @param n the number of bytes to skip
+	 * @throws IOException if the stream ends first
+	 */
+	private void skipFully(long n) throws IOException {
+		while(n > 0) {
+			long ret;
+			if(recordPos < recordLen) {
+				ret = Math.min(n, recordLen - recordPos);
+				recordPos += ret;
+			} else {
+				ret = in.skip(n);
+				if(ret <= 0) {
+					// Some streams only skip what they have at hand; read
+					// to tell a pause from the end of the stream.
+					if(!fill()) {
+						throw new IOException("early end of stream"); //$NON-NLS-1$
+					}
+					ret = 0;
+				}
+			}
+			n -= ret;
+			bytesread += ret;
 		}
-		return entry;
 	}
 
 	/* (non-Javadoc)
@@ -322,24 +423,76 @@ public class TarInputStream extends FilterInputStream
 			return -1;
 		}
 		if(len > nextEOF) {
-			len = nextEOF;
+			len = (int) nextEOF;
+		}
+		int size = readRecord(b, off, len);
+		if(size < 0) {
+			return size;
 		}
-		int size = super.read(b, off, len);
 		nextEntry -= size;
 		nextEOF -= size;
 		bytesread += size;
 		return size;
 	}
 
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#skip(long)
+	 */
+	public long skip(long n) throws IOException {
+		if(n > nextEOF) {
+			n = nextEOF;
+		}
+		if(n <= 0) {
+			return 0;
+		}
+		long before = bytesread;
+		skipFully(n);
+		long size = bytesread - before;
+		nextEntry -= size;
+		nextEOF -= size;
+		return size;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.io.FilterInputStream#read()
 	 */
 	public int read() throws IOException {
-		byte[] data = new byte[1];
-		int size = read(data, 0, 1);
-		if (size < 0) {
-			return size;
+		if(nextEOF == 0 || !fill()) {
+			return -1;
 		}
-		return data[0];
+		nextEntry--;
+		nextEOF--;
+		bytesread++;
+		return record[recordPos++] & 0xff;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#available()
+	 */
+	public int available() throws IOException {
+		long available = (recordLen - recordPos) + (long) in.available();
+		return (int) Math.min(available, nextEOF);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#markSupported()
+	 */
+	public boolean markSupported() {
+		// Marks of the underlying stream would not cover the buffer.
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#mark(int)
+	 */
+	public synchronized void mark(int readlimit) {
+		// Not supported.
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#reset()
+	 */
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported"); //$NON-NLS-1$
 	}
 }
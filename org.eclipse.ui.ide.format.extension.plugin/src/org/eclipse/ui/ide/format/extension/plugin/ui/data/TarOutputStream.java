@@ -10,22 +10,72 @@
  *******************************************************************************/
 package org.eclipse.ui.ide.format.extension.plugin.ui.data;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * Output stream for writing ustar archive files (tar) compatible
  * with the specification in IEEE Std 1003.1-2001.
+ * <p>
+ * Entries whose path does not fit the ustar name and prefix fields, or
+ * whose size does not fit the 11 octal digits of the size field, are
+ * preceded by a POSIX.1-2001 (PAX) extended header holding the path or
+ * size.  A size too large for octal is also written in the GNU base-256
+ * encoding, for readers that do not know PAX headers.
+ * </p>
  *
  * @since 3.1
  */
 public class TarOutputStream extends FilterOutputStream {
-	
-	private int byteswritten = 0;
+
+	private static final int BLOCK_SIZE = 512;
+
+	private static final int NAME = 0;
+	private static final int NAME_LENGTH = 100;
+	private static final int MODE = 100;
+	private static final int UID = 108;
+	private static final int GID = 116;
+	private static final int SIZE = 124;
+	private static final int MTIME = 136;
+	private static final int CHECKSUM = 148;
+	private static final int CHECKSUM_LENGTH = 8;
+	private static final int TYPE = 156;
+	private static final int MAGIC = 257;
+	private static final int UNAME = 265;
+	private static final int GNAME = 297;
+	private static final int PREFIX = 345;
+	private static final int PREFIX_LENGTH = 155;
+
+	/**
+	 * The largest value an octal numeric field of 12 bytes can hold.
+	 */
+	private static final long MAX_OCTAL = 077777777777L;
+
+	// The name of PAX extended headers, as used by other writers.
+	private static final String PAX_HEADER_NAME = "././@PaxHeader"; //$NON-NLS-1$
+	private static final int PAX_HEADER = 'x';
+
+	/**
+	 * A header with the fields that are the same for every entry filled in.
+	 */
+	private static final byte[] TEMPLATE = createTemplate();
+
+	/**
+	 * Zeros for padding, never written to.
+	 */
+	private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+
+	private long byteswritten = 0;
 	private int datapos = 0;
 	private long cursize = 0;
 
+	private final byte[] header = new byte[BLOCK_SIZE];
+	private byte[] nameBytes = new byte[PREFIX_LENGTH + 1 + NAME_LENGTH];
+
 	/**
 	 * Creates a new tar output stream.
 	 * 
@@ -35,22 +85,104 @@ public class TarOutputStream extends FilterOutputStream {
 		super(out);
 	}
 
+	private static byte[] createTemplate() {
+		byte[] template = new byte[BLOCK_SIZE];
+		template[UID] = '0';
+		template[GID] = '0';
+		/* "Blank" out the checksum. */
+		for (int i = 0; i < CHECKSUM_LENGTH; i++) {
+			template[CHECKSUM + i] = ' ';
+		}
+		/* Magic "ustar" and version "00". */
+		putAscii(template, MAGIC, "ustar"); //$NON-NLS-1$
+		putAscii(template, MAGIC + 6, "00"); //$NON-NLS-1$
+		putAscii(template, UNAME, "nobody"); //$NON-NLS-1$
+		putAscii(template, GNAME, "nobody"); //$NON-NLS-1$
+		return template;
+	}
+
+	private static void putAscii(byte[] b, int pos, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			b[pos + i] = (byte) s.charAt(i);
+		}
+	}
+
+	/**
+	 * Writes a value in octal with as many digits as it needs, as
+	 * <code>Long.toOctalString</code> would.
+	 *
+	 * @param b the header
+	 * @param pos offset of the first digit
+	 * @param value the value
+	 */
+	private static void putOctal(byte[] b, int pos, long value) {
+		int digits = Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 2) / 3);
+		putOctal(b, pos, value, digits);
+	}
+
+	/**
+	 * Writes a numeric field of 12 bytes: in octal when the value fits,
+	 * otherwise in the GNU base-256 encoding, big-endian after a first byte
+	 * with the high bit set.
+	 *
+	 * @param b the header
+	 * @param pos offset of the field
+	 * @param value the value
+	 */
+	private static void putNumber(byte[] b, int pos, long value) {
+		if (value >= 0 && value <= MAX_OCTAL) {
+			putOctal(b, pos, value);
+			return;
+		}
+		for (int i = pos + 11; i > pos; i--) {
+			b[i] = (byte) value;
+			value >>= 8;
+		}
+		b[pos] = (byte) (value < 0 ? 0xff : 0x80);
+	}
+
+	/**
+	 * Writes the lowest digits of a value in octal, padded with leading
+	 * zeros.
+	 *
+	 * @param b the header
+	 * @param pos offset of the first digit
+	 * @param value the value
+	 * @param digits the number of digits to write
+	 */
+	private static void putOctal(byte[] b, int pos, long value, int digits) {
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			b[i] = (byte) ('0' + (value & 7));
+			value >>>= 3;
+		}
+	}
+
+	/**
+	 * Writes the given number of zeros.
+	 *
+	 * @param length the number of zeros
+	 * @throws IOException
+	 */
+	private void writeZeros(int length) throws IOException {
+		cursize = length;
+		while (length > 0) {
+			int size = Math.min(length, ZEROS.length);
+			write(ZEROS, 0, size);
+			length -= size;
+		}
+	}
+
 	/**
 	 * Close the output stream and write any necessary padding.
 	 */
 	public void close() throws IOException {
 		// Spec says to write 1024 bytes of zeros at the end.
-		byte[] zeros = new byte[1024];
-		cursize = 1024;
-		write(zeros, 0, 1024);
+		writeZeros(1024);
 
 		// Default block size for tar files is 10240, so we have to
 		// pad the end of the file to be a multiple of this size.
 		if((byteswritten % 10240) != 0) {
-			int length = 10240 - (byteswritten % 10240);
-			cursize = length;
-			zeros = new byte[length];
-			write(zeros, 0, length);
+			writeZeros(10240 - (int) (byteswritten % 10240));
 		}
 		super.close();
 	}
@@ -62,11 +194,9 @@ public class TarOutputStream extends FilterOutputStream {
 	 * @throws IOException
 	 */
 	public void closeEntry() throws IOException {
-		byte[] data = new byte[512];
 		int len = 512 - datapos;
 		if(len > 0 && datapos > 0) {
-			cursize = len;
-			write(data, 0, len);
+			writeZeros(len);
 		}
 	}
 
@@ -85,6 +215,54 @@ public class TarOutputStream extends FilterOutputStream {
 		return sum;
 	}
 
+	/**
+	 * Encodes the name of an entry as UTF-8 into {@link #nameBytes}.  Plain
+	 * ASCII names, by far the most common, are copied without going
+	 * through a charset encoder.
+	 *
+	 * @param name the name
+	 * @return the number of bytes
+	 * @throws IOException
+	 */
+	private int encodeName(String name) throws IOException {
+		int length = name.length();
+		if (nameBytes.length < length) {
+			nameBytes = new byte[length];
+		}
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (c >= 0x80) {
+				nameBytes = name.getBytes("UTF8"); //$NON-NLS-1$
+				return nameBytes.length;
+			}
+			nameBytes[i] = (byte) c;
+		}
+		return length;
+	}
+
+	/**
+	 * Finds where to split the encoded name into prefix and name.
+	 *
+	 * @param length the length of the encoded name
+	 * @return the start of the name part, 0 if the name fits on its own,
+	 *         or -1 if it does not fit the ustar fields at all
+	 */
+	private int splitName(int length) {
+		if (length <= NAME_LENGTH - 1) {
+			return 0;
+		}
+		// A '/' never occurs inside a multi-byte UTF-8 sequence.
+		int seppos = length - 1;
+		while (seppos >= 0 && nameBytes[seppos] != '/') {
+			seppos--;
+		}
+		if (seppos == -1 || length - seppos - 1 > NAME_LENGTH - 1
+				|| seppos > PREFIX_LENGTH) {
+			return -1;
+		}
+		return seppos + 1;
+	}
+
 	/**
 	 * Adds an entry for a new file in the tar archive.
 	 * 
@@ -92,132 +270,142 @@ public class TarOutputStream extends FilterOutputStream {
 	 * @throws IOException
 	 */
 	public void putNextEntry(TarEntry e) throws IOException {
-		byte[] header = new byte[512];
-		String filename = e.getName();
-		String prefix = null;
-		int pos, i;
-		
-		/* Split filename into name and prefix if necessary. */
-		byte[] filenameBytes = filename.getBytes("UTF8"); //$NON-NLS-1$
-		if (filenameBytes.length > 99) {
-			int seppos = filename.lastIndexOf('/');
-			if(seppos == -1) {
-				throw new IOException("filename too long"); //$NON-NLS-1$
-			}
-			prefix = filename.substring(0, seppos);
-			filename = filename.substring(seppos + 1);
-			filenameBytes = filename.getBytes("UTF8"); //$NON-NLS-1$
-			if (filenameBytes.length > 99) {
-				throw new IOException("filename too long"); //$NON-NLS-1$
-			}
+		int length = encodeName(e.getName());
+		int start = splitName(length);
+		boolean longName = start < 0;
+		boolean largeSize = e.getSize() > MAX_OCTAL;
+		if (longName || largeSize) {
+			writePaxHeader(e, longName, largeSize);
 		}
-		
-		/* Filename. */
-		pos = 0;
-		System.arraycopy(filenameBytes, 0, header, 0, filenameBytes.length);
-		pos += 100;
-		
-		/* File mode. */
-		StringBuffer mode = new StringBuffer(Long.toOctalString(e.getMode()));
-		while(mode.length() < 7) {
-			mode.insert(0,'0');
-		}
-		for(i = 0; i < 7; i++) {
-			header[pos + i] = (byte) mode.charAt(i);
-		}
-		pos += 8;
-		
-		/* UID. */
-		header[pos] = '0';
-		pos += 8;
-		
-		/* GID. */
-		header[pos] = '0';
-		pos += 8;
-		
-		/* Length of the file. */
-		String length = Long.toOctalString(e.getSize());
-		for(i = 0; i < length.length(); i++) {
-			header[pos + i] = (byte) length.charAt(i);
-		}
-		pos += 12;
-		
-		/* mtime */
-		String mtime = Long.toOctalString(e.getTime());
-		for(i = 0; i < mtime.length(); i++) {
-			header[pos + i] = (byte) mtime.charAt(i);
-		}
-		pos += 12;
-		
-		/* "Blank" out the checksum. */
-		for(i = 0; i < 8; i++) {
-			header[pos + i] = ' ';
-		}
-		pos += 8;
-		
-		/* Link flag. */
-		header[pos] = (byte) e.getFileType();
-		pos += 1;
-
-		/* Link destination. */
-		pos += 100;
-
-		/* Add ustar header. */
-		String ustar = "ustar 00"; //$NON-NLS-1$
-		for(i = 0; i < ustar.length(); i++) {
-			header[pos + i] = (byte) ustar.charAt(i);
-		}
-		header[pos + 5] = 0;
-		pos += 8;
-		
-		/* Username. */
-		String uname = "nobody"; //$NON-NLS-1$
-		for(i = 0; i < uname.length(); i++) {
-			header[pos + i] = (byte) uname.charAt(i);
-		}
-		pos += 32;
-		
-		
-		/* Group name. */
-		String gname = "nobody"; //$NON-NLS-1$
-		for(i = 0; i < gname.length(); i++) {
-			header[pos + i] = (byte) gname.charAt(i);
-		}
-		pos += 32;
-		
-		/* Device major. */
-		pos += 8;
-
-		/* Device minor. */
-		pos += 8;
-
-		/* File prefix. */
-		if(prefix != null) {
-			byte[] prefixBytes = prefix.getBytes("UTF8"); //$NON-NLS-1$
-			if (prefixBytes.length > 155) {
-				throw new IOException("prefix too large"); //$NON-NLS-1$
+		int prefixLength = start - 1;
+		if (longName) {
+			// Readers without PAX support get the end of the path.
+			start = length - (NAME_LENGTH - 1);
+			while ((nameBytes[start] & 0xc0) == 0x80) {
+				start++;
 			}
-			System.arraycopy(prefixBytes, 0, header, pos, prefixBytes.length);
+			prefixLength = 0;
 		}
+		writeHeader(nameBytes, prefixLength, start, length, e.getMode(),
+				e.getSize(), e.getTime(), e.getFileType());
+		cursize = e.getSize();
+	}
 
-		long sum = headerChecksum(header);
-		pos = 100 + 8 + 8 + 8 + 12 + 12;
-		String sumval = Long.toOctalString(sum);
-		for(i = 0; i < sumval.length(); i++) {
-			header[pos + i] = (byte) sumval.charAt(i);
+	/**
+	 * Fills in and writes out a header.
+	 *
+	 * @param name the encoded name
+	 * @param prefixLength the length of the prefix at the start of the name,
+	 *            0 or less for none
+	 * @param start the start of the name part
+	 * @param length the length of the encoded name
+	 * @param mode the file mode
+	 * @param size the size of the data
+	 * @param time the modification time
+	 * @param type the type flag
+	 * @throws IOException
+	 */
+	private void writeHeader(byte[] name, int prefixLength, int start,
+			int length, long mode, long size, long time, int type)
+			throws IOException {
+		System.arraycopy(TEMPLATE, 0, header, 0, BLOCK_SIZE);
+		if (prefixLength > 0) {
+			System.arraycopy(name, 0, header, PREFIX, prefixLength);
 		}
+		System.arraycopy(name, start, header, NAME, length - start);
 
-		cursize = 512;
-		write(header, 0, 512);
-		
-		cursize = e.getSize();
+		putOctal(header, MODE, mode, 7);
+		putNumber(header, SIZE, size);
+		putNumber(header, MTIME, time);
+		header[TYPE] = (byte) type;
+		putOctal(header, CHECKSUM, headerChecksum(header));
+
+		cursize = BLOCK_SIZE;
+		write(header, 0, BLOCK_SIZE);
+	}
+
+	/**
+	 * Writes a PAX extended header holding the path or size of the given
+	 * entry, or both.
+	 *
+	 * @param e the entry that follows
+	 * @param path whether to record the path
+	 * @param size whether to record the size
+	 * @throws IOException
+	 */
+	private void writePaxHeader(TarEntry e, boolean path, boolean size)
+			throws IOException {
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		if (path) {
+			addPaxRecord(records, "path", e.getName()); //$NON-NLS-1$
+		}
+		if (size) {
+			addPaxRecord(records, "size", Long.toString(e.getSize())); //$NON-NLS-1$
+		}
+		byte[] name = PAX_HEADER_NAME.getBytes("UTF8"); //$NON-NLS-1$
+		writeHeader(name, 0, 0, name.length, 0644, records.size(), e.getTime(),
+				PAX_HEADER);
+		cursize = records.size();
+		records.writeTo(this);
+		closeEntry();
+	}
+
+	/**
+	 * Adds a record of the form "&lt;length&gt; &lt;keyword&gt;=&lt;value&gt;\n"
+	 * to a PAX extended header, where the length counts the whole record
+	 * including its own digits.
+	 *
+	 * @param records the records so far
+	 * @param keyword the keyword
+	 * @param value the value
+	 * @throws IOException
+	 */
+	private static void addPaxRecord(ByteArrayOutputStream records,
+			String keyword, String value) throws IOException {
+		byte[] content = (" " + keyword + "=" + value + "\n").getBytes("UTF8"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		int length = content.length + Integer.toString(content.length).length();
+		if (Integer.toString(length).length() > Integer.toString(content.length).length()) {
+			length++;
+		}
+		records.write(Integer.toString(length).getBytes("UTF8")); //$NON-NLS-1$
+		records.write(content);
+	}
+
+	/**
+	 * Writes data for the current file straight from one file channel to
+	 * another, letting the operating system move the bytes.  The target
+	 * must be the channel of the file this stream ends up writing to, with
+	 * nothing buffered in between but what {@link #flush()} writes out.
+	 *
+	 * @param source the channel to read from, at its start
+	 * @param count the number of bytes to transfer
+	 * @param target the channel of the archive file
+	 * @throws IOException
+	 */
+	void transferFrom(FileChannel source, long count, FileChannel target)
+			throws IOException {
+		if(count > cursize) {
+			throw new IOException("too much data written for current file"); //$NON-NLS-1$
+		}
+		flush();
+		long pos = 0;
+		while(pos < count) {
+			long n = source.transferTo(pos, count - pos, target);
+			if(n <= 0) {
+				throw new EOFException();
+			}
+			pos += n;
+		}
+		datapos = (int) ((datapos + count) % 512);
+		byteswritten += count;
+		cursize -= count;
 	}
 
 	/**
 	 * Writes data for the current file into the archive.
 	 */
 	public void write(byte[] b, int off, int len) throws IOException {
-		super.write(b, off, len);
+		out.write(b, off, len);
 		datapos = (datapos + len) % 512;
 		byteswritten += len;
 		cursize -= len;
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Red Hat, Inc and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Red Hat, Inc - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.ui.ide.format.extension.plugin.ui.data;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The threads shared by the archive readers and writers for compressing
+ * and decompressing blocks in parallel.  There is one thread per
+ * processor; they are daemon threads, created on first use.
+ * <p>
+ * Tasks run on the pool must never wait for other tasks of the pool.
+ * </p>
+ * <p>
+ * Reading files, which mostly waits for the disk or the network, is done
+ * on a separate pool of {@link #READERS} threads, so that it neither holds
+ * up nor is held up by the processors.
+ * </p>
+ */
+class WorkerPool {
+	/**
+	 * The number of threads reading files.
+	 */
+	static final int READERS = 4;
+
+	private static ExecutorService executor;
+
+	private static ExecutorService readerExecutor;
+
+	private WorkerPool() {
+	}
+
+	/**
+	 * Returns the number of threads of the pool.
+	 *
+	 * @return the number of available processors
+	 */
+	static int getThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Returns whether work is worth splitting between threads at all.
+	 *
+	 * @return true if there is more than one processor
+	 */
+	static boolean isParallel() {
+		return getThreads() > 1;
+	}
+
+	/**
+	 * Returns the shared executor.
+	 *
+	 * @return the executor
+	 */
+	static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(getThreads(), new ThreadFactory() {
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Archive Worker-" + (++count)); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Returns the executor for reading files.
+	 *
+	 * @return the executor
+	 */
+	static synchronized ExecutorService getReaderExecutor() {
+		if (readerExecutor == null) {
+			readerExecutor = Executors.newFixedThreadPool(READERS, new ThreadFactory() {
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Archive Reader-" + (++count)); //$NON-NLS-1$
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return readerExecutor;
+	}
+}
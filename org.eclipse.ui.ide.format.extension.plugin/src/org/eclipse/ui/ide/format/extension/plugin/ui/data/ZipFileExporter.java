@@ -10,27 +10,127 @@
  *******************************************************************************/
 package org.eclipse.ui.ide.format.extension.plugin.ui.data;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
+import org.eclipse.core.filesystem.EFS;
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.CoreException;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 
 /**
- *	Exports resources to a .zip file
+ *	Exports resources to a .zip file.  The archive is written to a random
+ *	access file, so that the CRC and sizes of each entry are filled into
+ *	its local header once the entry is complete, and every file is read
+ *	only once, whether it is stored or compressed.
+ *	<p>
+ *	When compressing in parallel, files of up to {@link #PARALLEL_MAX_SIZE}
+ *	bytes are read into memory and deflated on the {@link WorkerPool}, in
+ *	the manner of the scatter/gather creator of commons-compress.  The
+ *	deflated entries are added to the archive as raw entries in the order
+ *	they were written, so the archive is laid out as a sequential export
+ *	would lay it out.  At most two entries per thread, and at most
+ *	{@link #MAX_PENDING_BYTES} bytes of input, are in flight.
+ *	</p>
+ *	<p>
+ *	Files of at least {@link #setChunkThreshold(long)} bytes are instead cut
+ *	into blocks deflated in parallel by {@link ParallelDeflateOutputStream},
+ *	which joins them into a single deflate stream.  Since the CRC and
+ *	compressed size are only known at the end, the stream is spilled to a
+ *	temporary file and then copied into the archive as a raw entry.
+ *	</p>
+ *	<p>
+ *	With a {@link CompressionPolicy}, files that are not worth compressing
+ *	are stored instead: files held in memory whole are stored when
+ *	deflating them did not pay off, larger ones when their name or first
+ *	bytes say so.
+ *	</p>
  */
-public class ZipFileExporter implements IFileExporter {
-    private ZipOutputStream outputStream;
+public class ZipFileExporter implements IReadAheadExporter {
+    /**
+     * The largest file deflated on the pool when compressing in parallel;
+     * larger files are deflated on the exporting thread.
+     */
+    private static final int PARALLEL_MAX_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The most file data held in memory by the entries in flight.
+     */
+    private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    private ZipArchiveOutputStream outputStream;
 
     private boolean useCompression = true;
 
+    private boolean parallel = false;
+
+    private int maxPending;
+
+    @SuppressWarnings("rawtypes")
+    private LinkedList pending = new LinkedList();
+
+    private long pendingBytes = 0;
+
+    private long chunkThreshold = PARALLEL_MAX_SIZE;
+
+    private int chunkThreads = WorkerPool.getThreads();
+
+    private CompressionPolicy policy;
+
+    private final byte[] readBuffer = new byte[CompressionPolicy.SAMPLE_SIZE];
+
+    /**
+     * An entry waiting to be added to the archive in its turn.
+     */
+    private static class PendingEntry {
+        final ZipArchiveEntry entry;
+        @SuppressWarnings("rawtypes")
+        final Future deflated;
+        final byte[] data;
+
+        @SuppressWarnings("rawtypes")
+        PendingEntry(ZipArchiveEntry entry, Future deflated, byte[] data) {
+            this.entry = entry;
+            this.deflated = deflated;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The deflated data of a file, or only its CRC if it is to be stored.
+     */
+    private static class DeflatedData {
+        final byte[] data;
+        final int length;
+        final long crc;
+
+        DeflatedData(byte[] data, int length, long crc) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
     /**
      *	Create an instance of this class.
      *
@@ -39,8 +139,59 @@ public class ZipFileExporter implements IFileExporter {
      *	@exception java.io.IOException
      */
     public ZipFileExporter(String filename, boolean compress) throws IOException {
-        outputStream = new ZipOutputStream(new FileOutputStream(filename));
+        this(filename, compress, false);
+    }
+
+    /**
+     *	Create an instance of this class, setting whether to deflate files
+     *	on several threads.  Compressing in parallel is only done when
+     *	compressing at all and when there is more than one processor, and
+     *	ignored otherwise.
+     *
+     *	@param filename java.lang.String
+     *	@param compress boolean
+     *	@param parallel whether to deflate several files at once
+     *	@exception java.io.IOException
+     *	@since 3.4
+     */
+    public ZipFileExporter(String filename, boolean compress, boolean parallel)
+            throws IOException {
+        outputStream = new ZipArchiveOutputStream(new File(filename));
         useCompression = compress;
+        this.parallel = compress && parallel && WorkerPool.isParallel();
+        maxPending = 2 * WorkerPool.getThreads();
+    }
+
+    /**
+     *	Set the size from which a file is deflated in blocks on several
+     *	threads, when compressing in parallel.  Smaller files are deflated
+     *	whole, several at once.
+     *
+     *	@param size the size in bytes
+     *	@since 3.4
+     */
+    public void setChunkThreshold(long size) {
+        chunkThreshold = size;
+    }
+
+    /**
+     *	Set how many threads deflate the blocks of a large file, when
+     *	compressing in parallel.  It is at most the number of processors.
+     *
+     *	@param threads the number of threads
+     *	@since 3.4
+     */
+    public void setChunkThreads(int threads) {
+        chunkThreads = threads;
+    }
+
+    /**
+     *	Set the policy deciding which files to store rather than deflate.
+     *
+     *	@param policy the policy, or <code>null</code> to deflate all files
+     */
+    void setCompressionPolicy(CompressionPolicy policy) {
+        this.policy = policy;
     }
 
     /**
@@ -50,66 +201,350 @@ public class ZipFileExporter implements IFileExporter {
      *	@exception java.io.IOException
      */
     public void finished() throws IOException {
-        outputStream.close();
+        try {
+            writePending(0);
+        } finally {
+            cancel();
+            outputStream.close();
+        }
     }
 
     /**
-     *	Write the contents of the file to the tar archive.
+     * Reads a file into memory and hands it to the pool to be deflated,
+     * writing out finished entries while too many are in flight.
+     *
+     * @param entry the entry for the file
+     * @param data the contents of the file
+     * @throws IOException
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private void submit(ZipArchiveEntry entry, final byte[] data)
+            throws IOException {
+        final boolean store = policy != null
+                && CompressionPolicy.hasCompressedExtension(entry.getName());
+        Future deflated = WorkerPool.getExecutor().submit(new Callable() {
+            public Object call() {
+                return deflate(data, data.length, store);
+            }
+        });
+        pending.add(new PendingEntry(entry, deflated, data));
+        pendingBytes += data.length;
+        while (pending.size() > maxPending || pendingBytes > MAX_PENDING_BYTES) {
+            writeEntry();
+        }
+    }
+
+    /**
+     * Reads all of a file.
+     *
+     * @param contents the file
+     * @param length the expected length of the file
+     * @return the contents
+     * @throws IOException
+     * @throws CoreException
+     */
+    static byte[] readContents(IFile contents, int length)
+            throws IOException, CoreException {
+        byte[] data = new byte[length];
+        int count = 0;
+        InputStream contentStream = contents.getContents(false);
+        try {
+            while (true) {
+                if (count == data.length) {
+                    // The file grew since its length was taken.
+                    int next = contentStream.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    byte[] larger = new byte[Math.max(2 * data.length, 4096)];
+                    System.arraycopy(data, 0, larger, 0, count);
+                    data = larger;
+                    data[count++] = (byte) next;
+                }
+                int n = contentStream.read(data, count, data.length - count);
+                if (n < 0) {
+                    break;
+                }
+                count += n;
+            }
+        } finally {
+            contentStream.close();
+        }
+        if (count == data.length) {
+            return data;
+        }
+        byte[] result = new byte[count];
+        System.arraycopy(data, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Reads from a stream until the buffer is full or the stream ends.
+     *
+     * @param in the stream
+     * @param b the buffer
+     * @return the number of bytes read
+     * @throws IOException
+     */
+    private static int readFully(InputStream in, byte[] b) throws IOException {
+        int count = 0;
+        while (count < b.length) {
+            int n = in.read(b, count, b.length - count);
+            if (n < 0) {
+                break;
+            }
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * Deflates the contents of a file.
+     *
+     * @param input the contents
+     * @param length the length of the contents
+     * @param store whether only the CRC is needed, for storing the file
+     * @return the deflated data
+     */
+    private static DeflatedData deflate(byte[] input, int length, boolean store) {
+        CRC32 crc = new CRC32();
+        crc.update(input, 0, length);
+        if (store) {
+            return new DeflatedData(null, 0, crc.getValue());
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            byte[] data = new byte[length + (length >> 8) + 64];
+            int count = 0;
+            while (!deflater.finished()) {
+                if (count == data.length) {
+                    byte[] larger = new byte[data.length * 2];
+                    System.arraycopy(data, 0, larger, 0, count);
+                    data = larger;
+                }
+                count += deflater.deflate(data, count, data.length - count);
+            }
+            return new DeflatedData(data, count, crc.getValue());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes out the oldest entry in flight, waiting for it to be
+     * deflated.
+     *
+     * @throws IOException
+     */
+    private void writeEntry() throws IOException {
+        PendingEntry next = (PendingEntry) pending.removeFirst();
+        ZipArchiveEntry entry = next.entry;
+        if (next.deflated == null) {
+            outputStream.putArchiveEntry(entry);
+            outputStream.closeArchiveEntry();
+            return;
+        }
+        pendingBytes -= next.data.length;
+        DeflatedData deflated;
+        try {
+            deflated = (DeflatedData) next.deflated.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().toString());
+        }
+        addEntry(entry, next.data, next.data.length, deflated);
+    }
+
+    /**
+     * Adds a file held in memory as a raw entry, deflated or, if the data
+     * is to be stored or the policy finds deflating did not pay off,
+     * stored.
+     *
+     * @param entry the entry for the file
+     * @param input the contents of the file
+     * @param length the length of the contents
+     * @param deflated the deflated contents
+     * @throws IOException
+     */
+    private void addEntry(ZipArchiveEntry entry, byte[] input, int length,
+            DeflatedData deflated) throws IOException {
+        entry.setSize(length);
+        entry.setCrc(deflated.crc);
+        if (deflated.data == null || (policy != null
+                && !CompressionPolicy.isWorthCompressing(length, deflated.length))) {
+            policy.skipped(length);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setCompressedSize(length);
+            outputStream.addRawArchiveEntry(entry, new ByteArrayInputStream(
+                    input, 0, length));
+        } else {
+            entry.setMethod(ZipEntry.DEFLATED);
+            entry.setCompressedSize(deflated.length);
+            outputStream.addRawArchiveEntry(entry, new ByteArrayInputStream(
+                    deflated.data, 0, deflated.length));
+        }
+    }
+
+    /**
+     * Writes out entries in flight until no more than the given number
+     * are left.
+     *
+     * @param count the number of entries that may stay in flight
+     * @throws IOException
+     */
+    private void writePending(int count) throws IOException {
+        while (pending.size() > count) {
+            writeEntry();
+        }
+    }
+
+    /**
+     * Gives up on the entries still in flight.
+     */
+    @SuppressWarnings("rawtypes")
+    private void cancel() {
+        for (Iterator i = pending.iterator(); i.hasNext();) {
+            Future deflated = ((PendingEntry) i.next()).deflated;
+            if (deflated != null) {
+                deflated.cancel(false);
+            }
+        }
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    /**
+     *	Write the contents of the file to the zip archive.
      *
      *	@param entry
      *	@param contents
      *  @exception java.io.IOException
      *  @exception org.eclipse.core.runtime.CoreException
      */
-    private void write(ZipEntry entry, IFile contents) throws IOException, CoreException {
-        byte[] readBuffer = new byte[4096];
-
-        // If the contents are being compressed then we get the below for free.
+    private void write(ZipArchiveEntry entry, IFile contents) throws IOException, CoreException {
+        // The CRC and sizes are filled in after the data, even for stored
+        // entries.  Knowing the size up front spares the Zip64 fields
+        // reserved for entries of unknown size.
         if (!useCompression) {
             entry.setMethod(ZipEntry.STORED);
-        	InputStream contentStream = contents.getContents(false);
-        	int length = 0;
-            CRC32 checksumCalculator = new CRC32();
-            try {
-                int n;
-                while ((n = contentStream.read(readBuffer)) > 0) {
-                    checksumCalculator.update(readBuffer, 0, n);
-                    length += n;
-                }
-            } finally {
-                if (contentStream != null) {
-					contentStream.close();
-				}
-            }
-
+        }
+        long length = -1;
+        URI location = contents.getLocationURI();
+        if (location != null) {
+            length = EFS.getStore(location).fetchInfo().getLength();
             entry.setSize(length);
-            entry.setCrc(checksumCalculator.getValue());
         }
 
         // set the timestamp
         long localTimeStamp = contents.getLocalTimeStamp();
         if(localTimeStamp != IResource.NULL_STAMP)
         	entry.setTime(localTimeStamp);
+
+        boolean chunked = false;
+        if (parallel) {
+            chunked = length >= chunkThreshold
+                    && ParallelDeflateOutputStream.isSupported();
+            if (!chunked && length >= 0 && length <= PARALLEL_MAX_SIZE) {
+                submit(entry, readContents(contents, (int) length));
+                return;
+            }
+            writePending(0);
+        }
         
-        outputStream.putNextEntry(entry);
     	InputStream contentStream = contents.getContents(false);
         try {
-            int n;
-            while ((n = contentStream.read(readBuffer)) > 0) {
+            int n = readFully(contentStream, readBuffer);
+            boolean stored = false;
+            if (useCompression && policy != null) {
+                if (n < readBuffer.length) {
+                    // The whole file is in memory: deflate it and see.
+                    addEntry(entry, readBuffer, n, deflate(readBuffer, n,
+                            CompressionPolicy.hasCompressedExtension(entry.getName())));
+                    return;
+                }
+                if (!policy.shouldCompress(entry.getName(), readBuffer, n)) {
+                    entry.setMethod(ZipEntry.STORED);
+                    stored = true;
+                    chunked = false;
+                }
+            }
+            if (chunked) {
+                writeChunked(entry, contentStream, n);
+                return;
+            }
+            outputStream.putArchiveEntry(entry);
+            long written = 0;
+            do {
                 outputStream.write(readBuffer, 0, n);
+                written += n;
+            } while ((n = contentStream.read(readBuffer)) > 0);
+            outputStream.closeArchiveEntry();
+            if (stored) {
+                policy.skipped(written);
             }
         } finally {
-            if (contentStream != null) {
-				contentStream.close();
-			}
+            contentStream.close();
         }
-        outputStream.closeEntry();
     }
 
+    /**
+     *	Deflates a large file in blocks on several threads, through a
+     *	temporary file, and adds it as a raw entry.
+     *
+     *	@param entry
+     *	@param contentStream the contents of the file, past the bytes in
+     *	       the read buffer
+     *	@param buffered the number of bytes in the read buffer
+     *  @exception java.io.IOException
+     */
+    private void writeChunked(ZipArchiveEntry entry, InputStream contentStream,
+            int buffered) throws IOException {
+        File spill = File.createTempFile("export", ".deflate"); //$NON-NLS-1$ //$NON-NLS-2$
+        try {
+            ParallelDeflateOutputStream deflateStream = new ParallelDeflateOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(spill)),
+                    Deflater.DEFAULT_COMPRESSION, chunkThreads);
+            try {
+                deflateStream.write(readBuffer, 0, buffered);
+                int n;
+                while ((n = contentStream.read(readBuffer)) > 0) {
+                    deflateStream.write(readBuffer, 0, n);
+                }
+            } finally {
+                deflateStream.close();
+            }
+
+            entry.setMethod(ZipEntry.DEFLATED);
+            entry.setSize(deflateStream.getBytesRead());
+            entry.setCompressedSize(deflateStream.getBytesWritten());
+            entry.setCrc(deflateStream.getCrc());
+            InputStream rawStream = new BufferedInputStream(new FileInputStream(spill));
+            try {
+                outputStream.addRawArchiveEntry(entry, rawStream);
+            } finally {
+                rawStream.close();
+            }
+        } finally {
+            spill.delete();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
     public void write(IContainer container, String destinationPath)
             throws IOException {
-        ZipEntry newEntry = new ZipEntry(destinationPath);
-        outputStream.putNextEntry(newEntry);
+        ZipArchiveEntry newEntry = new ZipArchiveEntry(destinationPath);
+        if (!pending.isEmpty()) {
+            pending.add(new PendingEntry(newEntry, null, null));
+            return;
+        }
+        outputStream.putArchiveEntry(newEntry);
+        outputStream.closeArchiveEntry();
     }
 
     /**
@@ -122,7 +557,61 @@ public class ZipFileExporter implements IFileExporter {
      */
     public void write(IFile resource, String destinationPath)
             throws IOException, CoreException {
-        ZipEntry newEntry = new ZipEntry(destinationPath);
+        ZipArchiveEntry newEntry = new ZipArchiveEntry(destinationPath);
         write(newEntry, resource);
     }
+
+    /* (non-Javadoc)
+     * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.IReadAheadExporter#write(org.eclipse.core.resources.IFile, java.lang.String, byte[])
+     */
+    public void write(IFile resource, String destinationPath, byte[] contents)
+            throws IOException, CoreException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(destinationPath);
+        if (!useCompression) {
+            entry.setMethod(ZipEntry.STORED);
+        }
+        entry.setSize(contents.length);
+        long localTimeStamp = resource.getLocalTimeStamp();
+        if(localTimeStamp != IResource.NULL_STAMP)
+        	entry.setTime(localTimeStamp);
+        write(entry, contents);
+    }
+
+    /* (non-Javadoc)
+     * @see org.eclipse.ui.ide.format.extension.plugin.ui.data.IReadAheadExporter#write(java.lang.String, byte[], long)
+     */
+    public void write(String destinationPath, byte[] contents, long timeStamp)
+            throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(destinationPath);
+        if (!useCompression) {
+            entry.setMethod(ZipEntry.STORED);
+        }
+        entry.setSize(contents.length);
+        entry.setTime(timeStamp);
+        write(entry, contents);
+    }
+
+    /**
+     *	Write contents held in memory to the zip archive.
+     *
+     *	@param entry the entry, with its method, size and time set
+     *	@param contents all of the contents of the entry
+     *  @exception java.io.IOException
+     */
+    private void write(ZipArchiveEntry entry, byte[] contents) throws IOException {
+        if (parallel && contents.length <= PARALLEL_MAX_SIZE) {
+            submit(entry, contents);
+            return;
+        }
+        writePending(0);
+        if (useCompression) {
+            addEntry(entry, contents, contents.length, deflate(contents,
+                    contents.length, policy != null
+                            && CompressionPolicy.hasCompressedExtension(entry.getName())));
+            return;
+        }
+        outputStream.putArchiveEntry(entry);
+        outputStream.write(contents);
+        outputStream.closeArchiveEntry();
+    }
 }
@@ -332,7 +332,7 @@ public class ArchiveFileFormatExtensionProjectsImportPage extends WizardPage imp
 
 	// constant from WizardArchiveFileResourceImportPage1
 	private static final String[] FILE_IMPORT_MASK = {
-			"*.jar;*.zip;*.tar;*.tar.gz;*.tgz;*.tar.bz2;*.tbz;*.tbz2", "*.*" }; //$NON-NLS-1$ //$NON-NLS-2$
+			"*.jar;*.zip;*.tar;*.tar.gz;*.tgz;*.tar.bz2;*.tbz;*.tbz2;*.tar.xz;*.txz;*.tar.lz4;*.tar.zst;*.tzst", "*.*" }; //$NON-NLS-1$ //$NON-NLS-2$
 
 	// The initial path to set
 	private String initialPath;
@@ -1034,7 +1034,7 @@ public class ArchiveFileFormatExtensionProjectsImportPage extends WizardPage imp
 		}
 
 		try {
-			return new TarFile(fileName);
+			return ArchiveFileManipulations.openTarFile(fileName);
 		} catch (TarException e) {
 			displayErrorDialog(DataTransferMessages.TarImport_badFormat);
 		} catch (IOException e) {
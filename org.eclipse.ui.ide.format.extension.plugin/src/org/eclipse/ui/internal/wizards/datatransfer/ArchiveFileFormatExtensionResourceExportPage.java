@@ -23,6 +23,7 @@ import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.jface.dialogs.ErrorDialog;
 import org.eclipse.jface.dialogs.IDialogSettings;
+import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.osgi.util.NLS;
 import org.eclipse.swt.SWT;
@@ -62,6 +63,9 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
     protected Button uncompressTarButton;
     protected Button gzipCompressButton;
     protected Button bzip2CompressButton;
+    protected Button xzCompressButton;
+    protected Button lz4CompressButton;
+    protected Button zstdCompressButton;
     
     private Combo destinationNameField;
 
@@ -71,6 +75,10 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 
     protected Button createSelectionOnlyButton;
 
+    protected Button parallelCompressionCheckbox;
+
+    protected Button storeIncompressibleCheckbox;
+
     // dialog store id constants
     private final static String STORE_DESTINATION_NAMES_ID = "WizardZipFileResourceExportPage1.STORE_DESTINATION_NAMES_ID"; //$NON-NLS-1$
 
@@ -86,6 +94,16 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
     
     private final static String STORE_BZIP2_FORMAT_ID = "WizardZipFileResourceExportPage1.STORE_BZIP2_FORMAT_ID"; //$NON-NLS-1$
     
+    private final static String STORE_XZ_FORMAT_ID = "WizardZipFileResourceExportPage1.STORE_XZ_FORMAT_ID"; //$NON-NLS-1$
+    
+    private final static String STORE_LZ4_FORMAT_ID = "WizardZipFileResourceExportPage1.STORE_LZ4_FORMAT_ID"; //$NON-NLS-1$
+    
+    private final static String STORE_ZSTD_FORMAT_ID = "WizardZipFileResourceExportPage1.STORE_ZSTD_FORMAT_ID"; //$NON-NLS-1$
+    
+    private final static String STORE_PARALLEL_COMPRESSION_ID = "WizardZipFileResourceExportPage1.STORE_PARALLEL_COMPRESSION_ID"; //$NON-NLS-1$
+    
+    private final static String STORE_INCOMPRESSIBLE_ID = "WizardZipFileResourceExportPage1.STORE_INCOMPRESSIBLE_ID"; //$NON-NLS-1$
+    
     public static final String PREFIX = PlatformUI.PLUGIN_ID + "."; //$NON-NLS-1$
     
     //string constants taken frmo IDataTransferHelpContextIds
@@ -206,6 +224,27 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
         createSelectionOnlyButton.setFont(font);
     }
     
+    /**
+     * Create the checkboxes that determine whether the archive may be
+     * compressed on several threads, and whether files that are already
+     * compressed are compressed again.
+     * @param optionsGroup
+     * @param font
+     */
+    protected void createCompressionOptions(Composite optionsGroup, Font font) {
+        parallelCompressionCheckbox = new Button(optionsGroup, SWT.CHECK
+                | SWT.LEFT);
+        parallelCompressionCheckbox.setText(DataTransferMessages.ArchiveExport_compressInParallel);
+        parallelCompressionCheckbox.setSelection(true);
+        parallelCompressionCheckbox.setFont(font);
+
+        storeIncompressibleCheckbox = new Button(optionsGroup, SWT.CHECK
+                | SWT.LEFT);
+        storeIncompressibleCheckbox.setText(DataTransferMessages.ArchiveExport_storeIncompressible);
+        storeIncompressibleCheckbox.setSelection(true);
+        storeIncompressibleCheckbox.setFont(font);
+    }
+    
     /**
      *	Create the export options specification widgets.
      *
@@ -225,6 +264,7 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
         right.setLayout(new GridLayout(1, true));
 
         createDirectoryStructureOptions(right, font);
+        createCompressionOptions(right, font);
 
         // initial setup
         createDirectoryStructureButton.setSelection(true);
@@ -346,6 +386,57 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
         		}
         	}
         });
+        
+        //xz format tar ball
+        xzCompressButton = new Button(optionsGroup, SWT.RADIO | SWT.LEFT);
+        xzCompressButton.setText(DataTransferMessages.WizardArchiveFileResourceExportPage_XzCompressedTarFormat);
+        xzCompressButton.setSelection(false);
+        xzCompressButton.setFont(font);
+        xzCompressButton.setLayoutData(gridData);
+        xzCompressButton.addSelectionListener(new SelectionAdapter() {
+        	public void widgetSelected(SelectionEvent e) {
+        		if(((Button)e.getSource()).getSelection()) {
+        			//set xz compress option
+        			setXzTarOption();
+        			// try setting the correct file extension
+        			setDestinationValue(getDestinationValue(true));
+        		}
+        	}
+        });
+        
+        //lz4 format tar ball
+        lz4CompressButton = new Button(optionsGroup, SWT.RADIO | SWT.LEFT);
+        lz4CompressButton.setText(DataTransferMessages.WizardArchiveFileResourceExportPage_Lz4CompressedTarFormat);
+        lz4CompressButton.setSelection(false);
+        lz4CompressButton.setFont(font);
+        lz4CompressButton.setLayoutData(gridData);
+        lz4CompressButton.addSelectionListener(new SelectionAdapter() {
+        	public void widgetSelected(SelectionEvent e) {
+        		if(((Button)e.getSource()).getSelection()) {
+        			//set lz4 compress option
+        			setLz4TarOption();
+        			// try setting the correct file extension
+        			setDestinationValue(getDestinationValue(true));
+        		}
+        	}
+        });
+        
+        //zstd format tar ball
+        zstdCompressButton = new Button(optionsGroup, SWT.RADIO | SWT.LEFT);
+        zstdCompressButton.setText(DataTransferMessages.WizardArchiveFileResourceExportPage_ZstdCompressedTarFormat);
+        zstdCompressButton.setSelection(false);
+        zstdCompressButton.setFont(font);
+        zstdCompressButton.setLayoutData(gridData);
+        zstdCompressButton.addSelectionListener(new SelectionAdapter() {
+        	public void widgetSelected(SelectionEvent e) {
+        		if(((Button)e.getSource()).getSelection()) {
+        			//set zstd compress option
+        			setZstdTarOption();
+        			// try setting the correct file extension
+        			setDestinationValue(getDestinationValue(true));
+        		}
+        	}
+        });
     }    
     
     /**
@@ -463,6 +554,8 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
                 .getSelection());
         op.setUseCompression(compressContentsCheckbox.getSelection());
         op.setUseTarFormat(tarFormatButton.getSelection());
+        op.setUseParallelCompression(parallelCompressionCheckbox.getSelection());
+        op.setStoreIncompressible(storeIncompressibleCheckbox.getSelection());
 
         try {
             getContainer().run(true, true, op);
@@ -482,6 +575,14 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
             return false;
         }
 
+        long skippedBytes = op.getSkippedBytes();
+        if (skippedBytes > 0) {
+            MessageDialog.openInformation(getContainer().getShell(),
+                    DataTransferMessages.DataTransfer_information,
+                    NLS.bind(DataTransferMessages.ArchiveExport_skippedBytes,
+                            Long.toString((skippedBytes + 1023) / 1024)));
+        }
+
         return true;
     }
 
@@ -595,12 +696,20 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 				|| (in.endsWith(".zip"))		//$NON-NLS-1$
 				|| (in.endsWith(".tgz"))		//$NON-NLS-1$
 				|| (in.endsWith(".tbz"))		//$NON-NLS-1$
-				|| (in.endsWith(".tbz2"))) {	//$NON-NLS-1$
+				|| (in.endsWith(".tbz2"))		//$NON-NLS-1$
+				|| (in.endsWith(".txz"))		//$NON-NLS-1$
+				|| (in.endsWith(".tzst"))) {	//$NON-NLS-1$
     		index = in.lastIndexOf('.');
     	} else if(in.endsWith(".tar.gz")) {	//$NON-NLS-1$
 			index = in.lastIndexOf(".tar.gz"); //$NON-NLS-1$
     	} else if(in.endsWith(".tar.bz2")) {	//$NON-NLS-1$
 			index = in.lastIndexOf(".tar.bz2"); //$NON-NLS-1$
+    	} else if(in.endsWith(".tar.xz")) {	//$NON-NLS-1$
+			index = in.lastIndexOf(".tar.xz"); //$NON-NLS-1$
+    	} else if(in.endsWith(".tar.lz4")) {	//$NON-NLS-1$
+			index = in.lastIndexOf(".tar.lz4"); //$NON-NLS-1$
+    	} else if(in.endsWith(".tar.zst")) {	//$NON-NLS-1$
+			index = in.lastIndexOf(".tar.zst"); //$NON-NLS-1$
 		}
     	return index;
     }
@@ -618,6 +727,12 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 			return ".tar.gz"; //$NON-NLS-1$
 		} else if (bzip2CompressButton.getSelection()) {
 			return ".tar.bz2"; //$NON-NLS-1$
+		} else if (xzCompressButton.getSelection()) {
+			return ".tar.xz"; //$NON-NLS-1$
+		} else if (lz4CompressButton.getSelection()) {
+			return ".tar.lz4"; //$NON-NLS-1$
+		} else if (zstdCompressButton.getSelection()) {
+			return ".tar.zst"; //$NON-NLS-1$
 		} else {
 			return ".tar"; //$NON-NLS-1$
 		}
@@ -629,7 +744,7 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
      */
     protected void handleDestinationBrowseButtonPressed() {
         FileDialog dialog = new FileDialog(getContainer().getShell(), SWT.SAVE | SWT.SHEET);
-        dialog.setFilterExtensions(new String[] { "*.zip;*.tar.gz;*.tar;*.tar.bz2", "*.*" }); //$NON-NLS-1$ //$NON-NLS-2$
+        dialog.setFilterExtensions(new String[] { "*.zip;*.tar.gz;*.tar;*.tar.bz2;*.tar.xz;*.tar.lz4;*.tar.zst", "*.*" }); //$NON-NLS-1$ //$NON-NLS-2$
         dialog.setText(DataTransferMessages.ArchiveExport_selectDestinationTitle);
         String currentSourceString = getDestinationValue(false);
         int lastSeparatorIndex = currentSourceString
@@ -680,6 +795,21 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 
 			settings.put(STORE_BZIP2_FORMAT_ID,
 					bzip2CompressButton.getSelection());
+
+			settings.put(STORE_XZ_FORMAT_ID,
+					xzCompressButton.getSelection());
+
+			settings.put(STORE_LZ4_FORMAT_ID,
+					lz4CompressButton.getSelection());
+
+			settings.put(STORE_ZSTD_FORMAT_ID,
+					zstdCompressButton.getSelection());
+
+			settings.put(STORE_PARALLEL_COMPRESSION_ID,
+					parallelCompressionCheckbox.getSelection());
+
+			settings.put(STORE_INCOMPRESSIBLE_ID,
+					storeIncompressibleCheckbox.getSelection());
              
         }
     }
@@ -718,6 +848,13 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
             createDirectoryStructureButton.setSelection(setStructure);
             createSelectionOnlyButton.setSelection(!setStructure);
 
+            // on by default, also for settings stored before the option
+            parallelCompressionCheckbox.setSelection(settings
+                    .get(STORE_PARALLEL_COMPRESSION_ID) == null
+                    || settings.getBoolean(STORE_PARALLEL_COMPRESSION_ID));
+            storeIncompressibleCheckbox.setSelection(settings
+                    .get(STORE_INCOMPRESSIBLE_ID) == null
+                    || settings.getBoolean(STORE_INCOMPRESSIBLE_ID));
             
             
             boolean zipFormat = settings.getBoolean(STORE_ZIP_FORMAT_ID);
@@ -735,6 +872,23 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 						.getBoolean(STORE_GZIP_FORMAT_ID));
 				bzip2CompressButton.setSelection(settings
 						.getBoolean(STORE_BZIP2_FORMAT_ID));
+				xzCompressButton.setSelection(settings
+						.getBoolean(STORE_XZ_FORMAT_ID));
+				lz4CompressButton.setSelection(settings
+						.getBoolean(STORE_LZ4_FORMAT_ID)
+						&& lz4CompressButton.isEnabled());
+				zstdCompressButton.setSelection(settings
+						.getBoolean(STORE_ZSTD_FORMAT_ID)
+						&& zstdCompressButton.isEnabled());
+				if (!uncompressTarButton.getSelection()
+						&& !gzipCompressButton.getSelection()
+						&& !bzip2CompressButton.getSelection()
+						&& !xzCompressButton.getSelection()
+						&& !lz4CompressButton.getSelection()
+						&& !zstdCompressButton.getSelection()) {
+					// the stored format is no longer available
+					setUncompressedTarOption();
+				}
 			}
         }
     }
@@ -814,6 +968,19 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
     			|| (destinationValue.endsWith(".tbz2"))){	//$NON-NLS-1$
     		activateTarOptions();
     		setBzipTarOption();
+    	} else if (destinationValue.endsWith(".tar.xz")	//$NON-NLS-1$
+    			|| destinationValue.endsWith(".txz")) {		//$NON-NLS-1$
+    		activateTarOptions();
+    		setXzTarOption();
+    	} else if (destinationValue.endsWith(".tar.lz4")	//$NON-NLS-1$
+    			&& lz4CompressButton.isEnabled()) {
+    		activateTarOptions();
+    		setLz4TarOption();
+    	} else if ((destinationValue.endsWith(".tar.zst")	//$NON-NLS-1$
+    			|| destinationValue.endsWith(".tzst"))		//$NON-NLS-1$
+    			&& zstdCompressButton.isEnabled()) {
+    		activateTarOptions();
+    		setZstdTarOption();
     	}
     	if (destinationValue.length() == 0) {
             setMessage(destinationEmptyMessage());
@@ -848,6 +1015,9 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 		uncompressTarButton.setSelection(true);
 		gzipCompressButton.setSelection(false);
 		bzip2CompressButton.setSelection(false);
+		xzCompressButton.setSelection(false);
+		lz4CompressButton.setSelection(false);
+		zstdCompressButton.setSelection(false);
 		zipFormatButton.setSelection(false);
 	}
 
@@ -860,6 +1030,9 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 		uncompressTarButton.setSelection(false);
 		gzipCompressButton.setSelection(true);
 		bzip2CompressButton.setSelection(false);
+		xzCompressButton.setSelection(false);
+		lz4CompressButton.setSelection(false);
+		zstdCompressButton.setSelection(false);
 		zipFormatButton.setSelection(false);
 	}
 
@@ -872,6 +1045,9 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 		uncompressTarButton.setSelection(false);
 		gzipCompressButton.setSelection(false);
 		bzip2CompressButton.setSelection(false);
+		xzCompressButton.setSelection(false);
+		lz4CompressButton.setSelection(false);
+		zstdCompressButton.setSelection(false);
 		zipFormatButton.setSelection(true);
 	}
 
@@ -884,6 +1060,54 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 		uncompressTarButton.setSelection(false);
 		gzipCompressButton.setSelection(false);
 		bzip2CompressButton.setSelection(true);
+		xzCompressButton.setSelection(false);
+		lz4CompressButton.setSelection(false);
+		zstdCompressButton.setSelection(false);
+		zipFormatButton.setSelection(false);
+	}
+
+	/**
+	 * Configure the compression format radio buttons when xz compressed tar
+	 * format is selected.
+	 */
+	protected void setXzTarOption() {
+		tarFormatButton.setSelection(true);
+		uncompressTarButton.setSelection(false);
+		gzipCompressButton.setSelection(false);
+		bzip2CompressButton.setSelection(false);
+		xzCompressButton.setSelection(true);
+		lz4CompressButton.setSelection(false);
+		zstdCompressButton.setSelection(false);
+		zipFormatButton.setSelection(false);
+	}
+
+	/**
+	 * Configure the compression format radio buttons when LZ4 compressed tar
+	 * format is selected.
+	 */
+	protected void setLz4TarOption() {
+		tarFormatButton.setSelection(true);
+		uncompressTarButton.setSelection(false);
+		gzipCompressButton.setSelection(false);
+		bzip2CompressButton.setSelection(false);
+		xzCompressButton.setSelection(false);
+		lz4CompressButton.setSelection(true);
+		zstdCompressButton.setSelection(false);
+		zipFormatButton.setSelection(false);
+	}
+
+	/**
+	 * Configure the compression format radio buttons when Zstandard
+	 * compressed tar format is selected.
+	 */
+	protected void setZstdTarOption() {
+		tarFormatButton.setSelection(true);
+		uncompressTarButton.setSelection(false);
+		gzipCompressButton.setSelection(false);
+		bzip2CompressButton.setSelection(false);
+		xzCompressButton.setSelection(false);
+		lz4CompressButton.setSelection(false);
+		zstdCompressButton.setSelection(true);
 		zipFormatButton.setSelection(false);
 	}
 	
@@ -898,6 +1122,10 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 		 uncompressTarButton.setEnabled(true);
 		 gzipCompressButton.setEnabled(true);
 		 bzip2CompressButton.setEnabled(true);
+		 xzCompressButton.setEnabled(true);
+		 // only with the optional aircompressor library
+		 lz4CompressButton.setEnabled(TarFileExporter.isSupported(TarFileExporter.LZ4));
+		 zstdCompressButton.setEnabled(TarFileExporter.isSupported(TarFileExporter.ZSTD));
 		 uncompressTarButton.setSelection(true);
 	}
 	
@@ -912,6 +1140,9 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 		 uncompressTarButton.setEnabled(false);
 		 gzipCompressButton.setEnabled(false);
 		 bzip2CompressButton.setEnabled(false);
+		 xzCompressButton.setEnabled(false);
+		 lz4CompressButton.setEnabled(false);
+		 zstdCompressButton.setEnabled(false);
 	}
 	
 	/**
@@ -927,6 +1158,12 @@ public class ArchiveFileFormatExtensionResourceExportPage extends WizardExportRe
 				code = TarFileExporter.GZIP;
 			else if (bzip2CompressButton.getSelection())
 				code = TarFileExporter.BZIP2;
+			else if (xzCompressButton.getSelection())
+				code = TarFileExporter.XZ;
+			else if (lz4CompressButton.getSelection())
+				code = TarFileExporter.LZ4;
+			else if (zstdCompressButton.getSelection())
+				code = TarFileExporter.ZSTD;
 		}
 		return code;
 	}
@@ -56,7 +56,7 @@ public class ArchiveFileFormatExtensionResourceImportPage extends
     ILeveledImportStructureProvider structureProvider;
 
     // constants
-    private static final String[] FILE_IMPORT_MASK = { "*.jar;*.zip;*.tar;*.tar.gz;*.tgz;*.tar.bz2;*.tbz;*.tbz2", "*.*" }; //$NON-NLS-1$ //$NON-NLS-2$
+    private static final String[] FILE_IMPORT_MASK = { "*.jar;*.zip;*.tar;*.tar.gz;*.tgz;*.tar.bz2;*.tbz;*.tbz2;*.tar.xz;*.txz;*.tar.lz4;*.tar.zst;*.tzst", "*.*" }; //$NON-NLS-1$ //$NON-NLS-2$
 
     // dialog store id constants
     private final static String STORE_SOURCE_NAMES_ID = "WizardZipFileResourceImportPage1.STORE_SOURCE_NAMES_ID"; //$NON-NLS-1$
@@ -360,7 +360,7 @@ public class ArchiveFileFormatExtensionResourceImportPage extends
 		}
 
         try {
-            return new TarFile(fileName);
+            return ArchiveFileManipulations.openTarFile(fileName);
         } catch (TarException e) {
 			// ignore
         } catch (IOException e) {
@@ -412,11 +412,12 @@ public class ArchiveFileFormatExtensionResourceImportPage extends
 				fileSystemObjects);
 
 		operation.setContext(getShell());
-		if (!executeImportOperation(operation))
-			return false;
+		boolean result = executeImportOperation(operation);
 		
+		// Also when the import was cancelled, so that any read-ahead of the
+		// archive stops.
 		ArchiveFileManipulations.closeStructureProvider(importStructureProvider, getShell());
-		return true;
+		return result;
     }
 
     /**